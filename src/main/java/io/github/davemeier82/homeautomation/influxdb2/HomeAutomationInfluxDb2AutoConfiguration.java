@@ -18,10 +18,12 @@ package io.github.davemeier82.homeautomation.influxdb2;
 
 import com.influxdb.client.InfluxDBClient;
 import com.influxdb.client.InfluxDBClientFactory;
+import io.github.davemeier82.homeautomation.core.device.DeviceTypeFactory;
 import io.github.davemeier82.homeautomation.core.repositories.DeviceRepository;
 import io.github.davemeier82.homeautomation.influxdb2.device.InfluxDb2DeviceTypeFactory;
 import io.github.davemeier82.homeautomation.spring.core.HomeAutomationCoreAutoConfiguration;
 import io.github.davemeier82.homeautomation.spring.core.HomeAutomationCorePersistenceAutoConfiguration;
+import org.springframework.beans.factory.ObjectProvider;
 import org.springframework.boot.autoconfigure.AutoConfigureAfter;
 import org.springframework.boot.autoconfigure.AutoConfigureBefore;
 import org.springframework.boot.autoconfigure.condition.ConditionalOnBean;
@@ -35,6 +37,11 @@ import org.springframework.context.annotation.Primary;
 import org.springframework.scheduling.TaskScheduler;
 import org.springframework.scheduling.concurrent.ThreadPoolTaskScheduler;
 
+import java.nio.file.Path;
+import java.time.Duration;
+import java.time.Instant;
+import java.util.List;
+
 
 @Configuration
 @AutoConfigureBefore(HomeAutomationCoreAutoConfiguration.class)
@@ -52,8 +59,76 @@ public class HomeAutomationInfluxDb2AutoConfiguration {
   @Bean
   @ConditionalOnBean({InfluxDBClient.class, DeviceRepository.class})
   @Primary
-  InfluxDb2DeviceStateRepository influxDb2DeviceStateRepository(InfluxDBClient influxDBClient, InfluxDb2Properties influxDb2Properties, @Lazy DeviceRepository deviceRepository) {
-    return new InfluxDb2DeviceStateRepository(influxDBClient, influxDb2Properties.getBucket(), deviceRepository);
+  InfluxDb2DeviceStateRepository influxDb2DeviceStateRepository(InfluxDBClient influxDBClient,
+                                                                InfluxDb2Properties influxDb2Properties,
+                                                                @Lazy DeviceRepository deviceRepository,
+                                                                TaskScheduler influxDb2TaskScheduler,
+                                                                InfluxDb2SchemaMapping influxDb2SchemaMapping,
+                                                                InfluxDb2PointDispatcher influxDb2PointDispatcher,
+                                                                InfluxDb2QueryProfiler influxDb2QueryProfiler
+  ) {
+    InfluxDb2Properties.SnapshotProperties snapshotProperties = influxDb2Properties.getSnapshot();
+    if (snapshotProperties.getPath() == null) {
+      return new InfluxDb2DeviceStateRepository(influxDBClient, influxDb2Properties.getBucket(), deviceRepository, null, influxDb2SchemaMapping, influxDb2PointDispatcher,
+          influxDb2QueryProfiler, influxDb2TaskScheduler, influxDb2Properties.getCoalescing());
+    }
+    InfluxDb2DeviceStateRepository repository = new InfluxDb2DeviceStateRepository(influxDBClient, influxDb2Properties.getBucket(), deviceRepository,
+        new InfluxDb2LatestValueSnapshot(Path.of(snapshotProperties.getPath()), snapshotProperties.getMaxAge()), influxDb2SchemaMapping, influxDb2PointDispatcher,
+        influxDb2QueryProfiler, influxDb2TaskScheduler, influxDb2Properties.getCoalescing());
+    Duration interval = snapshotProperties.getInterval();
+    influxDb2TaskScheduler.scheduleWithFixedDelay(repository::saveSnapshot, Instant.now().plus(interval), interval);
+    // the restored values are served right away and compared with the database in the background
+    Duration maxAge = snapshotProperties.getMaxAge();
+    if (maxAge == null) {
+      influxDb2TaskScheduler.schedule(repository::reconcileLatestValues, Instant.now());
+    } else {
+      influxDb2TaskScheduler.scheduleWithFixedDelay(repository::reconcileLatestValues, Instant.now(), maxAge);
+    }
+    return repository;
+  }
+
+  @Bean
+  @ConditionalOnMissingBean
+  InfluxDb2SchemaMapping influxDb2SchemaMapping(InfluxDb2Properties influxDb2Properties,
+                                                ObjectProvider<InfluxDb2QueryProfiler> influxDb2QueryProfiler,
+                                                TaskScheduler influxDb2TaskScheduler
+  ) {
+    InfluxDb2Properties.SchemaProperties schema = influxDb2Properties.getSchema();
+    InfluxDb2SchemaMapping schemaMapping = new InfluxDb2SchemaMapping(schema.getAttributes(), schema.getCustomIdentifiers(), schema.getMaxSeriesPerMeasurement(),
+        schema.getCardinalityAction());
+    // scanning the bucket can take a while, the series that are written in the meantime are counted as well
+    influxDb2QueryProfiler.ifAvailable(queryProfiler -> influxDb2TaskScheduler.schedule(() -> schemaMapping.loadSeries(queryProfiler, influxDb2Properties.getBucket()),
+        Instant.now()));
+    return schemaMapping;
+  }
+
+  @Bean
+  @ConditionalOnBean(InfluxDBClient.class)
+  @ConditionalOnMissingBean
+  InfluxDb2QueryProfiler influxDb2QueryProfiler(InfluxDBClient influxDBClient, InfluxDb2Properties influxDb2Properties) {
+    InfluxDb2Properties.ProfilingProperties profiling = influxDb2Properties.getProfiling();
+    return new InfluxDb2QueryProfiler(influxDBClient.getQueryApi(), profiling.isEnabled(), profiling.getSampleRate(), profiling.getSlowQueryThreshold(), profiling.getBufferSize());
+  }
+
+  @Bean
+  @ConditionalOnMissingBean
+  InfluxDb2PointDispatcher influxDb2PointDispatcher() {
+    return new InfluxDb2PointDispatcher();
+  }
+
+  @Bean
+  @ConditionalOnBean({InfluxDBClient.class, DeviceRepository.class})
+  @ConditionalOnProperty(prefix = "homeautomation.influxdb2.bulk-import", name = "file")
+  InfluxDb2BulkImportRunner influxDb2BulkImportRunner(InfluxDBClient influxDBClient,
+                                                      InfluxDb2Properties influxDb2Properties,
+                                                      InfluxDb2SchemaMapping influxDb2SchemaMapping,
+                                                      @Lazy DeviceRepository deviceRepository,
+                                                      List<DeviceTypeFactory> deviceTypeFactories
+  ) {
+    InfluxDb2Properties.BulkImportProperties bulkImport = influxDb2Properties.getBulkImport();
+    InfluxDb2BulkImporter importer = new InfluxDb2BulkImporter(influxDBClient.getWriteApiBlocking(), new InfluxDb2PointMapper(influxDb2SchemaMapping), deviceRepository,
+        deviceTypeFactories, bulkImport.getChunkSize(), bulkImport.getParallelism());
+    return new InfluxDb2BulkImportRunner(importer, bulkImport);
   }
 
   @Bean
@@ -44,10 +44,13 @@ public class HomeAutomationInfluxDb2DeviceAutoConfiguration {
                                                 RelayStateValueUpdateService relayStateValueUpdateService,
                                                 DevicePropertyValueRepository devicePropertyValueRepository,
                                                 LockProvider lockProvider,
-                                                @Lazy DeviceRepository deviceRepository
+                                                @Lazy DeviceRepository deviceRepository,
+                                                InfluxDb2Properties influxDb2Properties,
+                                                InfluxDb2PointDispatcher influxDb2PointDispatcher,
+                                                InfluxDb2QueryProfiler influxDb2QueryProfiler
   ) {
-    return new InfluxDb2DeviceFactory(influxDb2TaskScheduler, influxDBClient.getQueryApi(), powerValueUpdateService, relayStateValueUpdateService, devicePropertyValueRepository, deviceRepository,
-        lockProvider);
+    return new InfluxDb2DeviceFactory(influxDb2TaskScheduler, influxDb2QueryProfiler, powerValueUpdateService, relayStateValueUpdateService, devicePropertyValueRepository, deviceRepository,
+        lockProvider, influxDb2Properties.getAdaptivePolling(), influxDb2PointDispatcher);
   }
 
 }
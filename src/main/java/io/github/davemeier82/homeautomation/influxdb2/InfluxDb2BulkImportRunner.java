@@ -0,0 +1,80 @@
+/*
+ * Copyright 2021-2026 the original author or authors.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *       https://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package io.github.davemeier82.homeautomation.influxdb2;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.springframework.beans.factory.DisposableBean;
+import org.springframework.boot.ApplicationArguments;
+import org.springframework.boot.ApplicationRunner;
+
+import java.nio.file.Path;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+
+/**
+ * Starts the import configured with {@code homeautomation.influxdb2.bulk-import.*} on startup,
+ * e.g. {@code --homeautomation.influxdb2.bulk-import.file=history.csv}. The import runs on its own thread, so the application starts without waiting for it and a
+ * failed import is only logged. Running it again after a failure resumes the import from the checkpoint file, running it again after a successful import does nothing.
+ */
+public class InfluxDb2BulkImportRunner implements ApplicationRunner, DisposableBean {
+
+  private static final Logger log = LoggerFactory.getLogger(InfluxDb2BulkImportRunner.class);
+
+  private final InfluxDb2BulkImporter importer;
+  private final InfluxDb2Properties.BulkImportProperties properties;
+  private final ExecutorService executor = Executors.newSingleThreadExecutor(runnable -> new Thread(runnable, "influxDb2BulkImport"));
+
+  public InfluxDb2BulkImportRunner(InfluxDb2BulkImporter importer, InfluxDb2Properties.BulkImportProperties properties) {
+    this.importer = importer;
+    this.properties = properties;
+  }
+
+  @Override
+  public void run(ApplicationArguments args) {
+    executor.execute(this::importFile);
+  }
+
+  private void importFile() {
+    Path file = Path.of(properties.getFile());
+    Path checkpointFile = properties.getCheckpointFile() == null ? file.resolveSibling(file.getFileName() + ".checkpoint") : Path.of(properties.getCheckpointFile());
+    log.info("importing {} as {}", file, properties.getFormat());
+    InfluxDb2BulkImporter.ProgressListener listener = (committedLine, written) -> log.info("imported {} records, all lines up to {} are written", written, committedLine);
+    InfluxDb2BulkImporter.Result result;
+    try {
+      result = switch (properties.getFormat()) {
+        case CSV -> importer.importCsv(file, checkpointFile, listener);
+        case LINE_PROTOCOL -> importer.importLineProtocol(file, properties.getPrecision(), checkpointFile, listener);
+      };
+    } catch (RuntimeException e) {
+      log.error("import of {} failed, running it again resumes from {}", file, checkpointFile, e);
+      return;
+    }
+    log.info("import of {} finished: {} lines read, {} records written, {} lines skipped", file, result.lines(), result.written(), result.skipped());
+    if (result.rejected() > 0) {
+      log.warn("{} records of {} were rejected by the server, running it again resumes from {}", result.rejected(), file, checkpointFile);
+    }
+  }
+
+  /**
+   * Interrupts a running import, it keeps its checkpoint.
+   */
+  @Override
+  public void destroy() {
+    executor.shutdownNow();
+  }
+}
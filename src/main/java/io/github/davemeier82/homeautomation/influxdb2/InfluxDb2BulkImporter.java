@@ -0,0 +1,467 @@
+/*
+ * Copyright 2021-2026 the original author or authors.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *       https://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package io.github.davemeier82.homeautomation.influxdb2;
+
+import com.influxdb.client.WriteApiBlocking;
+import com.influxdb.client.domain.WritePrecision;
+import com.influxdb.exceptions.InfluxException;
+import io.github.davemeier82.homeautomation.core.device.Device;
+import io.github.davemeier82.homeautomation.core.device.DeviceId;
+import io.github.davemeier82.homeautomation.core.device.DeviceTypeFactory;
+import io.github.davemeier82.homeautomation.core.repositories.DeviceRepository;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.io.BufferedReader;
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.time.Instant;
+import java.time.OffsetDateTime;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Optional;
+import java.util.TreeMap;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicReference;
+import java.util.function.Function;
+
+import static java.nio.charset.StandardCharsets.UTF_8;
+
+/**
+ * Imports large amounts of historical values from CSV or line protocol files.
+ * <p>
+ * The file is read as a stream and written in chunks by several threads. Only a bounded number of chunks is held in memory at any time.
+ * The number of lines that have been written completely is stored in a checkpoint file so that a failed import can be resumed.
+ * After a successful import the checkpoint file marks the file as imported and later imports of it do nothing until the checkpoint file is deleted.
+ * <p>
+ * Chunks that fail with a server error or because of too many requests are retried. Chunks that the server rejects (e.g. because of a field type conflict)
+ * are logged and counted as rejected, the import continues with the next chunk. The checkpoint does not move past a rejected chunk and the file is not marked as
+ * imported, so that the import can be repeated from there once the file is fixed.
+ * <p>
+ * CSV files need a header line with the columns {@code time}, {@code deviceType}, {@code deviceId}, {@code devicePropertyId}, {@code measurement} and {@code value}.
+ * The columns {@code unit}, {@code displayName} and {@code valueType} ({@code boolean}, {@code long}, {@code double} or {@code string}) are optional. Without a
+ * value type, numbers without a decimal point or exponent are written as long values, so it should be set for floating point series with integral values.
+ * The time is either an ISO-8601 date time or epoch milliseconds. CSV rows are written with the same layout as
+ * {@link InfluxDb2DeviceStateRepository#insert}, lines in line protocol format are written unchanged.
+ */
+public class InfluxDb2BulkImporter {
+
+  private static final Logger log = LoggerFactory.getLogger(InfluxDb2BulkImporter.class);
+  private static final int MAX_WRITE_ATTEMPTS = 3;
+  private static final String COMPLETED = "completed";
+  private static final List<String> REQUIRED_COLUMNS = List.of("time", "deviceType", "deviceId", "devicePropertyId", "measurement", "value");
+
+  private final WriteApiBlocking writeApi;
+  private final InfluxDb2PointMapper pointMapper;
+  private final DeviceRepository deviceRepository;
+  private final List<DeviceTypeFactory> deviceTypeFactories;
+  private final int chunkSize;
+  private final int parallelism;
+
+  /**
+   * @param chunkSize   number of lines that are written in one request
+   * @param parallelism number of concurrent write requests, at most twice as many chunks are held in memory
+   */
+  public InfluxDb2BulkImporter(WriteApiBlocking writeApi,
+                               InfluxDb2PointMapper pointMapper,
+                               DeviceRepository deviceRepository,
+                               List<DeviceTypeFactory> deviceTypeFactories,
+                               int chunkSize,
+                               int parallelism
+  ) {
+    this.writeApi = writeApi;
+    this.pointMapper = pointMapper;
+    this.deviceRepository = deviceRepository;
+    this.deviceTypeFactories = deviceTypeFactories;
+    this.chunkSize = chunkSize;
+    this.parallelism = parallelism;
+  }
+
+  /**
+   * Imports a CSV file.
+   *
+   * @param file           the CSV file
+   * @param checkpointFile file in which the progress is stored, the import continues after the stored line if it exists. May be {@code null}.
+   * @param listener       gets notified after every written chunk
+   * @return the result of the import
+   */
+  public Result importCsv(Path file, Path checkpointFile, ProgressListener listener) {
+    if (isCompleted(file, checkpointFile)) {
+      return new Result(0, 0, 0, 0);
+    }
+    try (BufferedReader reader = Files.newBufferedReader(file, UTF_8)) {
+      String header = reader.readLine();
+      if (header == null) {
+        return new Result(0, 0, 0, 0);
+      }
+      Map<String, Integer> columns = new HashMap<>();
+      List<String> headerColumns = parseCsvLine(header);
+      for (int i = 0; i < headerColumns.size(); i++) {
+        columns.put(headerColumns.get(i).strip(), i);
+      }
+      REQUIRED_COLUMNS.stream().filter(column -> !columns.containsKey(column)).findAny().ifPresent(column -> {
+        throw new IllegalArgumentException("CSV file " + file + " has no column " + column);
+      });
+      Map<DeviceId, Optional<Device>> devices = new HashMap<>();
+      return importLines(reader, WritePrecision.MS, checkpointFile, listener, line -> toLineProtocol(parseCsvLine(line), columns, devices));
+    } catch (IOException e) {
+      throw new UncheckedIOException("failed to import " + file, e);
+    }
+  }
+
+  /**
+   * Imports a file in line protocol format.
+   *
+   * @param file           the line protocol file
+   * @param precision      the precision of the timestamps in the file
+   * @param checkpointFile file in which the progress is stored, the import continues after the stored line if it exists. May be {@code null}.
+   * @param listener       gets notified after every written chunk
+   * @return the result of the import
+   */
+  public Result importLineProtocol(Path file, WritePrecision precision, Path checkpointFile, ProgressListener listener) {
+    if (isCompleted(file, checkpointFile)) {
+      return new Result(0, 0, 0, 0);
+    }
+    try (BufferedReader reader = Files.newBufferedReader(file, UTF_8)) {
+      return importLines(reader, precision, checkpointFile, listener, line -> line.startsWith("#") ? null : line);
+    } catch (IOException e) {
+      throw new UncheckedIOException("failed to import " + file, e);
+    }
+  }
+
+  private Result importLines(BufferedReader reader, WritePrecision precision, Path checkpointFile, ProgressListener listener, Function<String, String> converter) throws IOException {
+    long startLine = readCheckpoint(checkpointFile);
+    if (startLine > 0) {
+      log.info("resuming import after line {}", startLine);
+    }
+    ExecutorService executor = Executors.newFixedThreadPool(parallelism);
+    Semaphore inFlightChunks = new Semaphore(2 * parallelism);
+    Checkpoint checkpoint = new Checkpoint(checkpointFile, startLine);
+    AtomicReference<RuntimeException> failure = new AtomicReference<>();
+    AtomicLong written = new AtomicLong();
+    AtomicLong rejected = new AtomicLong();
+    long lineNumber = 0;
+    long skipped = 0;
+    long chunkIndex = 0;
+    List<String> chunk = new ArrayList<>(chunkSize);
+    try {
+      String line;
+      while (failure.get() == null && (line = reader.readLine()) != null) {
+        lineNumber++;
+        if (lineNumber <= startLine || line.isBlank()) {
+          continue;
+        }
+        String record;
+        try {
+          record = converter.apply(line);
+        } catch (RuntimeException e) {
+          log.warn("skipping invalid line {}: {}", lineNumber, e.getMessage());
+          record = null;
+        }
+        if (record == null) {
+          skipped++;
+        } else {
+          chunk.add(record);
+        }
+        if (chunk.size() >= chunkSize) {
+          submit(executor, inFlightChunks, checkpoint, failure, written, rejected, listener, precision, chunk, chunkIndex++, lineNumber);
+          chunk = new ArrayList<>(chunkSize);
+        }
+      }
+      if (failure.get() == null) {
+        submit(executor, inFlightChunks, checkpoint, failure, written, rejected, listener, precision, chunk, chunkIndex, lineNumber);
+      }
+    } catch (InterruptedException e) {
+      Thread.currentThread().interrupt();
+      failure.compareAndSet(null, new IllegalStateException("import interrupted", e));
+    } finally {
+      executor.shutdown();
+      awaitTermination(executor);
+    }
+
+    if (failure.get() != null) {
+      log.error("import failed, {} lines were written completely", checkpoint.getCommittedLine());
+      throw failure.get();
+    }
+    if (rejected.get() > 0) {
+      log.warn("{} records were rejected, the checkpoint stays at line {} so that the import can be repeated from there", rejected.get(), checkpoint.getCommittedLine());
+    } else if (checkpointFile != null) {
+      Files.writeString(checkpointFile, COMPLETED, UTF_8);
+    }
+    return new Result(lineNumber, written.get(), skipped, rejected.get());
+  }
+
+  private void submit(ExecutorService executor,
+                      Semaphore inFlightChunks,
+                      Checkpoint checkpoint,
+                      AtomicReference<RuntimeException> failure,
+                      AtomicLong written,
+                      AtomicLong rejected,
+                      ProgressListener listener,
+                      WritePrecision precision,
+                      List<String> records,
+                      long chunkIndex,
+                      long lastLine
+  ) throws InterruptedException {
+    inFlightChunks.acquire();
+    executor.execute(() -> {
+      try {
+        long total = written.get();
+        boolean writtenCompletely = true;
+        if (!records.isEmpty()) {
+          try {
+            write(precision, records);
+            total = written.addAndGet(records.size());
+          } catch (InfluxException e) {
+            if (isRetryable(e)) {
+              throw e;
+            }
+            log.error("server rejected chunk {} ending at line {}, its {} records are not imported: {}", chunkIndex, lastLine, records.size(), e.getMessage());
+            rejected.addAndGet(records.size());
+            writtenCompletely = false;
+          }
+        }
+        // the checkpoint does not move past a rejected chunk, the chunks after it are written again by a repeated import
+        listener.onProgress(writtenCompletely ? checkpoint.complete(chunkIndex, lastLine) : checkpoint.getCommittedLine(), total);
+      } catch (RuntimeException e) {
+        failure.compareAndSet(null, e);
+      } finally {
+        inFlightChunks.release();
+      }
+    });
+  }
+
+  private void write(WritePrecision precision, List<String> records) {
+    for (int attempt = 1; ; attempt++) {
+      try {
+        writeApi.writeRecords(precision, records);
+        return;
+      } catch (InfluxException e) {
+        if (attempt >= MAX_WRITE_ATTEMPTS || !isRetryable(e)) {
+          throw e;
+        }
+        log.warn("failed to write chunk (attempt {} of {}), retrying", attempt, MAX_WRITE_ATTEMPTS, e);
+        try {
+          Thread.sleep(1000L * attempt);
+        } catch (InterruptedException ie) {
+          Thread.currentThread().interrupt();
+          throw e;
+        }
+      }
+    }
+  }
+
+  /**
+   * @return {@code true} for errors without a response, too many requests and server errors
+   */
+  private static boolean isRetryable(InfluxException e) {
+    return e.status() == 0 || e.status() == 429 || e.status() >= 500;
+  }
+
+  private static void awaitTermination(ExecutorService executor) {
+    try {
+      while (!executor.awaitTermination(1, TimeUnit.MINUTES)) {
+        log.debug("waiting for pending chunks");
+      }
+    } catch (InterruptedException e) {
+      Thread.currentThread().interrupt();
+    }
+  }
+
+  private String toLineProtocol(List<String> values, Map<String, Integer> columns, Map<DeviceId, Optional<Device>> devices) {
+    String deviceType = column(values, columns, "deviceType");
+    String deviceId = column(values, columns, "deviceId");
+    Device device = findDevice(deviceType, deviceId, devices);
+    return pointMapper.toPoint(column(values, columns, "measurement"),
+        deviceType,
+        deviceId,
+        column(values, columns, "devicePropertyId"),
+        device,
+        column(values, columns, "unit"),
+        column(values, columns, "displayName"),
+        parseValue(column(values, columns, "value"), column(values, columns, "valueType")),
+        parseTime(column(values, columns, "time"))).toLineProtocol();
+  }
+
+  private Device findDevice(String deviceType, String deviceId, Map<DeviceId, Optional<Device>> devices) {
+    return deviceTypeFactories.stream()
+                              .map(factory -> factory.createDeviceType(deviceType))
+                              .flatMap(Optional::stream)
+                              .findFirst()
+                              .flatMap(type -> devices.computeIfAbsent(new DeviceId(deviceId, type), id -> deviceRepository.getByDeviceId(id).map(Device.class::cast)))
+                              .orElse(null);
+  }
+
+  private static String column(List<String> values, Map<String, Integer> columns, String name) {
+    Integer index = columns.get(name);
+    if (index == null || index >= values.size() || values.get(index).isEmpty()) {
+      return null;
+    }
+    return values.get(index);
+  }
+
+  static Object parseValue(String value, String valueType) {
+    if (value == null) {
+      throw new IllegalArgumentException("missing value");
+    }
+    if (valueType != null) {
+      return switch (valueType) {
+        case "boolean" -> Boolean.valueOf(value);
+        case "long" -> Long.valueOf(value);
+        case "double" -> Double.valueOf(value);
+        case "string" -> value;
+        default -> throw new IllegalArgumentException("unknown value type " + valueType);
+      };
+    }
+    if ("true".equalsIgnoreCase(value) || "false".equalsIgnoreCase(value)) {
+      return Boolean.valueOf(value);
+    }
+    try {
+      // integer series would get a field type conflict if their values were written as floats
+      return value.matches("[+-]?\\d+") ? Long.valueOf(value) : Double.valueOf(value);
+    } catch (NumberFormatException e) {
+      return value;
+    }
+  }
+
+  static Instant parseTime(String time) {
+    if (time == null) {
+      throw new IllegalArgumentException("missing time");
+    }
+    if (time.chars().allMatch(Character::isDigit)) {
+      return Instant.ofEpochMilli(Long.parseLong(time));
+    }
+    return OffsetDateTime.parse(time).toInstant();
+  }
+
+  /**
+   * Splits a CSV line. Values may be quoted with double quotes, quotes within quoted values are escaped by doubling them.
+   */
+  static List<String> parseCsvLine(String line) {
+    List<String> values = new ArrayList<>();
+    StringBuilder value = new StringBuilder();
+    boolean quoted = false;
+    for (int i = 0; i < line.length(); i++) {
+      char c = line.charAt(i);
+      if (quoted) {
+        if (c == '"' && i + 1 < line.length() && line.charAt(i + 1) == '"') {
+          value.append('"');
+          i++;
+        } else if (c == '"') {
+          quoted = false;
+        } else {
+          value.append(c);
+        }
+      } else if (c == '"') {
+        quoted = true;
+      } else if (c == ',') {
+        values.add(value.toString());
+        value.setLength(0);
+      } else {
+        value.append(c);
+      }
+    }
+    values.add(value.toString());
+    return values;
+  }
+
+  private static boolean isCompleted(Path file, Path checkpointFile) {
+    try {
+      if (checkpointFile != null && Files.isRegularFile(checkpointFile) && COMPLETED.equals(Files.readString(checkpointFile, UTF_8).strip())) {
+        log.info("{} was already imported, delete {} to import it again", file, checkpointFile);
+        return true;
+      }
+      return false;
+    } catch (IOException e) {
+      throw new UncheckedIOException("failed to read checkpoint " + checkpointFile, e);
+    }
+  }
+
+  private static long readCheckpoint(Path checkpointFile) throws IOException {
+    if (checkpointFile == null || !Files.isRegularFile(checkpointFile)) {
+      return 0;
+    }
+    return Long.parseLong(Files.readString(checkpointFile, UTF_8).strip());
+  }
+
+  /**
+   * Tracks the last line up to which all chunks have been written. Chunks may complete out of order.
+   */
+  private static final class Checkpoint {
+    private final Path file;
+    private final TreeMap<Long, Long> completedChunks = new TreeMap<>();
+    private long nextChunk = 0;
+    private long committedLine;
+
+    private Checkpoint(Path file, long committedLine) {
+      this.file = file;
+      this.committedLine = committedLine;
+    }
+
+    private synchronized long complete(long chunkIndex, long lastLine) {
+      completedChunks.put(chunkIndex, lastLine);
+      long previous = committedLine;
+      while (completedChunks.containsKey(nextChunk)) {
+        committedLine = completedChunks.remove(nextChunk);
+        nextChunk++;
+      }
+      if (file != null && committedLine != previous) {
+        try {
+          Files.writeString(file, Long.toString(committedLine), UTF_8);
+        } catch (IOException e) {
+          log.error("failed to write checkpoint {}", file, e);
+        }
+      }
+      return committedLine;
+    }
+
+    private synchronized long getCommittedLine() {
+      return committedLine;
+    }
+  }
+
+  public enum Format {
+    CSV,
+    LINE_PROTOCOL
+  }
+
+  @FunctionalInterface
+  public interface ProgressListener {
+    /**
+     * @param committedLine all lines up to this line have been written
+     * @param written       number of records written so far
+     */
+    void onProgress(long committedLine, long written);
+  }
+
+  /**
+   * @param lines    number of lines read (including lines skipped because of a checkpoint)
+   * @param written  number of records written
+   * @param skipped  number of lines that were not written because they are comments or could not be converted
+   * @param rejected number of records in chunks that the server rejected
+   */
+  public record Result(long lines, long written, long skipped, long rejected) {
+  }
+}
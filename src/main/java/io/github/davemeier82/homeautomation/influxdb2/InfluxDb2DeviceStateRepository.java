@@ -17,13 +17,11 @@
 package io.github.davemeier82.homeautomation.influxdb2;
 
 import com.influxdb.client.InfluxDBClient;
-import com.influxdb.client.QueryApi;
 import com.influxdb.client.WriteApi;
-import com.influxdb.client.domain.WritePrecision;
-import com.influxdb.client.write.Point;
 import com.influxdb.exceptions.InfluxException;
 import com.influxdb.query.FluxRecord;
 import com.influxdb.query.FluxTable;
+import io.github.davemeier82.homeautomation.core.device.Device;
 import io.github.davemeier82.homeautomation.core.device.property.DevicePropertyId;
 import io.github.davemeier82.homeautomation.core.device.property.DevicePropertyValueType;
 import io.github.davemeier82.homeautomation.core.event.DataWithTimestamp;
@@ -32,30 +30,98 @@ import io.github.davemeier82.homeautomation.core.repositories.DeviceRepository;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 import org.springframework.beans.factory.DisposableBean;
+import org.springframework.scheduling.TaskScheduler;
 
 import java.lang.reflect.InvocationTargetException;
 import java.lang.reflect.Method;
+import java.time.Instant;
 import java.time.OffsetDateTime;
+import java.util.LinkedHashMap;
 import java.util.List;
+import java.util.Map;
 import java.util.Optional;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
 
+import static io.github.davemeier82.homeautomation.influxdb2.InfluxDb2PointMapper.VALUE_FIELD_NAME;
+import static io.github.davemeier82.homeautomation.influxdb2.InfluxDb2PointMapper.coalescedFieldName;
+import static io.github.davemeier82.homeautomation.influxdb2.InfluxDb2PointMapper.toFieldValue;
 import static java.time.ZoneOffset.UTC;
 import static java.util.Objects.requireNonNull;
 
 public class InfluxDb2DeviceStateRepository implements DevicePropertyValueRepository, DisposableBean {
 
-  private static final String VALUE_FIELD_NAME = "value";
   private static final Logger log = LoggerFactory.getLogger(InfluxDb2DeviceStateRepository.class);
   private final WriteApi writeApi;
-  private final QueryApi queryApi;
+  private final InfluxDb2QueryProfiler queryProfiler;
   private final String bucket;
   private final DeviceRepository deviceRepository;
+  private final InfluxDb2LatestValueSnapshot latestValueSnapshot;
+  private final InfluxDb2PointMapper pointMapper;
+  private final InfluxDb2PointDispatcher pointDispatcher;
+  private final InfluxDb2PointCoalescer pointCoalescer;
+  private final String coalescedMeasurement;
+  private final Set<String> coalescedMeasurements;
+  private final Set<String> subscribedCoalescedMeasurements = ConcurrentHashMap.newKeySet();
+  private volatile boolean latestValuesLoaded;
+  private Instant lastReconciliation;
 
   public InfluxDb2DeviceStateRepository(InfluxDBClient influxDBClient, String bucket, DeviceRepository deviceRepository) {
+    this(influxDBClient, bucket, deviceRepository, null, new InfluxDb2SchemaMapping(), new InfluxDb2PointDispatcher(),
+        new InfluxDb2QueryProfiler(influxDBClient.getQueryApi()));
+  }
+
+  /**
+   * @param latestValueSnapshot optional snapshot of the latest values which is loaded on creation and saved on {@link #destroy()}. May be {@code null}. Its values
+   *                            are served as they are, {@link #reconcileLatestValues()} has to be scheduled to compare them with the database.
+   * @param schemaMapping       decides which attributes are written as tags or fields
+   * @param pointDispatcher     gets all inserted points to pass them to its subscribers
+   * @param queryProfiler       executes the queries
+   */
+  public InfluxDb2DeviceStateRepository(InfluxDBClient influxDBClient,
+                                        String bucket,
+                                        DeviceRepository deviceRepository,
+                                        InfluxDb2LatestValueSnapshot latestValueSnapshot,
+                                        InfluxDb2SchemaMapping schemaMapping,
+                                        InfluxDb2PointDispatcher pointDispatcher,
+                                        InfluxDb2QueryProfiler queryProfiler
+  ) {
+    this(influxDBClient, bucket, deviceRepository, latestValueSnapshot, schemaMapping, pointDispatcher, queryProfiler, null, new InfluxDb2Properties.CoalescingProperties());
+  }
+
+  /**
+   * @param scheduler  writes the merged points once the coalescing window has passed, only required if coalescing is enabled
+   * @param coalescing if enabled, values of the configured measurements of a device with the same timestamp are written as one point with a field per device property
+   */
+  public InfluxDb2DeviceStateRepository(InfluxDBClient influxDBClient,
+                                        String bucket,
+                                        DeviceRepository deviceRepository,
+                                        InfluxDb2LatestValueSnapshot latestValueSnapshot,
+                                        InfluxDb2SchemaMapping schemaMapping,
+                                        InfluxDb2PointDispatcher pointDispatcher,
+                                        InfluxDb2QueryProfiler queryProfiler,
+                                        TaskScheduler scheduler,
+                                        InfluxDb2Properties.CoalescingProperties coalescing
+  ) {
     writeApi = influxDBClient.makeWriteApi();
-    queryApi = influxDBClient.getQueryApi();
+    this.queryProfiler = queryProfiler;
     this.bucket = bucket;
     this.deviceRepository = deviceRepository;
+    this.latestValueSnapshot = latestValueSnapshot;
+    pointMapper = new InfluxDb2PointMapper(schemaMapping);
+    this.pointDispatcher = pointDispatcher;
+    if (coalescing.isEnabled() && !coalescing.getMeasurements().isEmpty()) {
+      pointCoalescer = new InfluxDb2PointCoalescer(requireNonNull(scheduler), coalescing.getWindow(), this::writeCoalesced);
+      coalescedMeasurement = coalescing.getMeasurement();
+      coalescedMeasurements = Set.copyOf(coalescing.getMeasurements());
+    } else {
+      pointCoalescer = null;
+      coalescedMeasurement = null;
+      coalescedMeasurements = Set.of();
+    }
+    if (latestValueSnapshot != null) {
+      latestValueSnapshot.load();
+    }
   }
 
   static <T> T cast(Object value, Class<T> clazz) {
@@ -104,48 +170,155 @@ public class InfluxDb2DeviceStateRepository implements DevicePropertyValueReposi
 
   @Override
   public void insert(DevicePropertyId devicePropertyId, DevicePropertyValueType devicePropertyValueType, String displayName, Object value, OffsetDateTime time) {
-    Point point = new Point(devicePropertyValueType.getTypeName());
-    deviceRepository.getByDeviceId(devicePropertyId.deviceId()).ifPresent(device -> {
-      point.addTag("deviceDisplayName", device.getDisplayName());
-      device.getCustomIdentifiers().forEach((key, val) -> point.addTag("ci-" + key, val));
-    });
-    point.addTag("devicePropertyId", devicePropertyId.id());
-    point.addTag("deviceId", devicePropertyId.deviceId().id());
-    point.addTag("deviceType", devicePropertyId.deviceId().type().getTypeName());
-    point.addTag("unit", devicePropertyValueType.getUnit());
-    point.addTag("displayName", displayName);
-    point.time(time.toInstant().toEpochMilli(), WritePrecision.MS);
-    switch (value) {
-      case Boolean b -> point.addField(VALUE_FIELD_NAME, b);
-      case Integer i -> point.addField(VALUE_FIELD_NAME, i);
-      case Float f -> point.addField(VALUE_FIELD_NAME, f);
-      case Double d -> point.addField(VALUE_FIELD_NAME, d);
-      case Long l -> point.addField(VALUE_FIELD_NAME, l);
-      case Number n -> point.addField(VALUE_FIELD_NAME, n);
-      case String s -> point.addField(VALUE_FIELD_NAME, s);
-      case Enum<?> e -> point.addField(VALUE_FIELD_NAME, e.name());
-      default -> point.addField(VALUE_FIELD_NAME, value.toString());
-    }
-    writeApi.writePoint(point);
+    String measurement = devicePropertyValueType.getTypeName();
+    String deviceType = devicePropertyId.deviceId().type().getTypeName();
+    Device device = deviceRepository.getByDeviceId(devicePropertyId.deviceId()).orElse(null);
+    if (isCoalesced(measurement)) {
+      pointCoalescer.add(deviceType, devicePropertyId.deviceId().id(), device, time.toInstant(), new InfluxDb2PointCoalescer.Value(measurement, devicePropertyId.id(), value));
+    } else {
+      writeApi.writePoint(pointMapper.toPoint(measurement,
+          deviceType,
+          devicePropertyId.deviceId().id(),
+          devicePropertyId.id(),
+          device,
+          devicePropertyValueType.getUnit(),
+          displayName,
+          value,
+          time.toInstant()));
+    }
+    if (latestValueSnapshot != null) {
+      latestValueSnapshot.update(snapshotKey(devicePropertyId, devicePropertyValueType), toFieldValue(value), time.toInstant());
+    }
+    if (pointDispatcher.hasSubscriptions(measurement)) {
+      warnIfCoalesced(measurement);
+      pointDispatcher.dispatch(measurement,
+          pointMapper.toTags(deviceType, devicePropertyId.deviceId().id(), devicePropertyId.id(), device, devicePropertyValueType.getUnit(), displayName),
+          toFieldValue(value),
+          time.toInstant());
+    }
+  }
+
+  /**
+   * Whether a measurement is coalesced only depends on the configuration, so its layout does not change once sensors subscribe to it. The subscribers still get the
+   * values but the queries of the sensors have to read the merged points.
+   */
+  private void warnIfCoalesced(String measurement) {
+    if (isCoalesced(measurement) && subscribedCoalescedMeasurements.add(measurement)) {
+      log.warn("measurement {} has subscribers but is coalesced, queries of sensors have to read the {} measurement", measurement, coalescedMeasurement);
+    }
+  }
+
+  private boolean isCoalesced(String measurement) {
+    return coalescedMeasurements.contains(measurement);
+  }
+
+  private void writeCoalesced(InfluxDb2PointCoalescer.Group group) {
+    InfluxDb2PointCoalescer.Key key = group.key();
+    Map<String, Object> values = new LinkedHashMap<>();
+    group.values().forEach(value -> values.put(coalescedFieldName(value.devicePropertyId(), value.measurement()), value.value()));
+    writeApi.writePoint(pointMapper.toCoalescedPoint(coalescedMeasurement, key.deviceType(), key.deviceId(), group.device(), values, key.time()));
   }
 
   @Override
   public <T> Optional<DataWithTimestamp<T>> findLatestValue(DevicePropertyId devicePropertyId, DevicePropertyValueType devicePropertyValueType, Class<T> clazz) {
-    List<FluxTable> tables;
+    if (latestValueSnapshot == null) {
+      Optional<DataWithTimestamp<T>> latestValue;
+      try {
+        latestValue = queryLatestValue(devicePropertyId, devicePropertyValueType, "0")
+            .map(record -> new DataWithTimestamp<>(requireNonNull(record.getTime()).atOffset(UTC), cast(record.getValueByKey("_value"), clazz)));
+      } catch (InfluxException e) {
+        latestValue = Optional.empty();
+      }
+      if (!isCoalesced(devicePropertyValueType.getTypeName())) {
+        return latestValue;
+      }
+      // values that are still collected by the coalescer are not in the database yet
+      Optional<InfluxDb2PointCoalescer.Pending> pending = pointCoalescer.findPending(devicePropertyId.deviceId().type().getTypeName(), devicePropertyId.deviceId().id(),
+          devicePropertyValueType.getTypeName(), devicePropertyId.id());
+      if (pending.isPresent() && (latestValue.isEmpty() || !pending.get().time().isBefore(latestValue.get().getDateTime().toInstant()))) {
+        return Optional.of(new DataWithTimestamp<>(pending.get().time().atOffset(UTC), cast(toFieldValue(pending.get().value()), clazz)));
+      }
+      return latestValue;
+    }
+
+    InfluxDb2LatestValueSnapshot.Key key = snapshotKey(devicePropertyId, devicePropertyValueType);
+    if (latestValueSnapshot.get(key).isEmpty() && !latestValuesLoaded) {
+      // the latest values are still being loaded in the background
+      try {
+        queryLatestValue(devicePropertyId, devicePropertyValueType, "0")
+            .ifPresent(record -> latestValueSnapshot.update(key, record.getValueByKey("_value"), requireNonNull(record.getTime())));
+      } catch (InfluxException e) {
+        return Optional.empty();
+      }
+    }
+    return latestValueSnapshot.get(key).map(e -> new DataWithTimestamp<>(e.time().atOffset(UTC), cast(e.value(), clazz)));
+  }
+
+  /**
+   * Reads the latest value of every device property that was written since the previous run (or of all device properties on the first successful run) with one
+   * query and updates the snapshot. This picks up values of other writers, e.g. other nodes or bulk imports. If the query fails, the cached values are kept and
+   * the next run reads the same range again.
+   */
+  public synchronized void reconcileLatestValues() {
+    if (latestValueSnapshot == null) {
+      return;
+    }
+    Instant start = Instant.now();
     String query = "from(bucket: \"" + bucket + "\")\n" +
-        "  |> range(start: 0)\n" +
-        "  |> filter(fn: (r) => r.devicePropertyId == \"" + devicePropertyId.id() + "\")\n" +
-        "  |> filter(fn: (r) => r.deviceId == \"" + devicePropertyId.deviceId().id() + "\")\n" +
-        "  |> filter(fn: (r) => r.deviceType == \"" + devicePropertyId.deviceId().type().getTypeName() + "\")\n" +
-        "  |> filter(fn: (r) => r._measurement == \"" + devicePropertyValueType.getTypeName() + "\")\n" +
-        "  |> filter(fn: (r) => r._field == \"" + VALUE_FIELD_NAME + "\")\n" +
+        "  |> range(start: " + (lastReconciliation == null ? "0" : lastReconciliation.toString()) + ")\n" +
+        "  |> filter(fn: (r) => r._field == \"" + VALUE_FIELD_NAME + "\"" + (pointCoalescer == null ? "" : " or r._measurement == \"" + coalescedMeasurement + "\"") + ")\n" +
         "  |> last()";
+    try {
+      queryProfiler.query(query, this::updateLatestValue);
+    } catch (InfluxException e) {
+      log.error("failed to reconcile the latest values: {}", query, e);
+      return;
+    }
+    if (!latestValuesLoaded) {
+      latestValueSnapshot.markAllReconciled();
+      latestValuesLoaded = true;
+      log.info("reconciled {} latest values", latestValueSnapshot.size());
+    }
+    lastReconciliation = start;
+  }
+
+  private void updateLatestValue(FluxRecord record) {
+    String measurement = record.getMeasurement();
+    String field = record.getField();
+    Object devicePropertyId = record.getValueByKey("devicePropertyId");
+    if (!VALUE_FIELD_NAME.equals(field)) {
+      // a field of a merged point is named after the device property and its measurement
+      int separator = field == null ? -1 : field.lastIndexOf('.');
+      if (separator < 0 || !isCoalesced(field.substring(separator + 1))) {
+        return;
+      }
+      devicePropertyId = field.substring(0, separator);
+      measurement = field.substring(separator + 1);
+    }
+    Object deviceType = record.getValueByKey("deviceType");
+    Object deviceId = record.getValueByKey("deviceId");
+    if (measurement == null || deviceType == null || deviceId == null || devicePropertyId == null || record.getTime() == null) {
+      return;
+    }
+    latestValueSnapshot.update(new InfluxDb2LatestValueSnapshot.Key(measurement, deviceType.toString(), deviceId.toString(), devicePropertyId.toString()),
+        record.getValue(), record.getTime());
+  }
+
+  /**
+   * @throws InfluxException if the query failed, to tell it apart from a property without newer values
+   */
+  private Optional<FluxRecord> queryLatestValue(DevicePropertyId devicePropertyId, DevicePropertyValueType devicePropertyValueType, String start) {
+    List<FluxTable> tables;
+    String query = "from(bucket: \"" + bucket + "\")\n" +
+        "  |> range(start: " + start + ")\n" +
+        valueFilter(devicePropertyId, devicePropertyValueType) +
+        lastValue(devicePropertyValueType);
     try {
       log.trace(query);
-      tables = queryApi.query(query);
+      tables = queryProfiler.query(query);
     } catch (InfluxException e) {
       log.error("failed to read latest value: {}", query, e);
-      return Optional.empty();
+      throw e;
     }
 
     if (tables.isEmpty()) {
@@ -155,12 +328,7 @@ public class InfluxDb2DeviceStateRepository implements DevicePropertyValueReposi
     if (records.isEmpty()) {
       return Optional.empty();
     }
-    FluxRecord record = records.getFirst();
-
-    Object value = record.getValueByKey("_value");
-    T mapped = cast(value, clazz);
-
-    return Optional.of(new DataWithTimestamp<>(requireNonNull(record.getTime()).atOffset(UTC), mapped));
+    return Optional.of(records.getFirst());
   }
 
   @Override
@@ -168,11 +336,7 @@ public class InfluxDb2DeviceStateRepository implements DevicePropertyValueReposi
     List<FluxTable> tables;
     String query = "from(bucket: \"" + bucket + "\")\n" +
         "  |> range(start: 0)\n" +
-        "  |> filter(fn: (r) => r.devicePropertyId == \"" + devicePropertyId.id() + "\")\n" +
-        "  |> filter(fn: (r) => r.deviceId == \"" + devicePropertyId.deviceId().id() + "\")\n" +
-        "  |> filter(fn: (r) => r.deviceType == \"" + devicePropertyId.deviceId().type().getTypeName() + "\")\n" +
-        "  |> filter(fn: (r) => r._measurement == \"" + devicePropertyValueType.getTypeName() + "\")\n" +
-        "  |> filter(fn: (r) => r._field == \"" + VALUE_FIELD_NAME + "\")\n";
+        valueFilter(devicePropertyId, devicePropertyValueType);
     if (value instanceof Boolean b) {
       query += "  |> filter(fn: (r) => r._value == " + b.toString().toLowerCase() + ")\n";
     } else if (value instanceof Number n) {
@@ -180,9 +344,9 @@ public class InfluxDb2DeviceStateRepository implements DevicePropertyValueReposi
     } else {
       query += "  |> filter(fn: (r) => r._value == \"" + value.toString() + "\")\n";
     }
-    query += "  |> last()";
+    query += lastValue(devicePropertyValueType);
     try {
-      tables = queryApi.query(query);
+      tables = queryProfiler.query(query);
     } catch (
         InfluxException e) {
       log.error("failed to read last time value matched: {}", query, e);
@@ -206,8 +370,56 @@ public class InfluxDb2DeviceStateRepository implements DevicePropertyValueReposi
             atOffset(UTC));
   }
 
+  /**
+   * Selects the values of a device property. Values of coalesced measurements can either be in their own point or in a field of a merged point.
+   */
+  private String valueFilter(DevicePropertyId devicePropertyId, DevicePropertyValueType devicePropertyValueType) {
+    if (!isCoalesced(devicePropertyValueType.getTypeName())) {
+      return "  |> filter(fn: (r) => r.devicePropertyId == \"" + devicePropertyId.id() + "\")\n" +
+          "  |> filter(fn: (r) => r.deviceId == \"" + devicePropertyId.deviceId().id() + "\")\n" +
+          "  |> filter(fn: (r) => r.deviceType == \"" + devicePropertyId.deviceId().type().getTypeName() + "\")\n" +
+          "  |> filter(fn: (r) => r._measurement == \"" + devicePropertyValueType.getTypeName() + "\")\n" +
+          "  |> filter(fn: (r) => r._field == \"" + VALUE_FIELD_NAME + "\")\n";
+    }
+    return "  |> filter(fn: (r) => r.deviceId == \"" + devicePropertyId.deviceId().id() + "\")\n" +
+        "  |> filter(fn: (r) => r.deviceType == \"" + devicePropertyId.deviceId().type().getTypeName() + "\")\n" +
+        "  |> filter(fn: (r) => (r._measurement == \"" + devicePropertyValueType.getTypeName() + "\" and r.devicePropertyId == \"" + devicePropertyId.id() + "\" and r._field == \""
+        + VALUE_FIELD_NAME + "\") or (r._measurement == \"" + coalescedMeasurement + "\" and r._field == \""
+        + coalescedFieldName(devicePropertyId.id(), devicePropertyValueType.getTypeName()) + "\"))\n";
+  }
+
+  /**
+   * Selects the latest value. For coalesced measurements, the latest values of the single and the merged points are compared.
+   */
+  private String lastValue(DevicePropertyValueType devicePropertyValueType) {
+    if (!isCoalesced(devicePropertyValueType.getTypeName())) {
+      return "  |> last()";
+    }
+    return "  |> last()\n" +
+        "  |> group()\n" +
+        "  |> sort(columns: [\"_time\"], desc: true)\n" +
+        "  |> limit(n: 1)";
+  }
+
+  /**
+   * Saves the latest value snapshot if one is configured.
+   */
+  public void saveSnapshot() {
+    if (latestValueSnapshot != null) {
+      latestValueSnapshot.save();
+    }
+  }
+
+  private static InfluxDb2LatestValueSnapshot.Key snapshotKey(DevicePropertyId devicePropertyId, DevicePropertyValueType devicePropertyValueType) {
+    return new InfluxDb2LatestValueSnapshot.Key(devicePropertyValueType.getTypeName(), devicePropertyId.deviceId().type().getTypeName(), devicePropertyId.deviceId().id(), devicePropertyId.id());
+  }
+
   @Override
   public void destroy() {
+    if (pointCoalescer != null) {
+      pointCoalescer.close();
+    }
     writeApi.close();
+    saveSnapshot();
   }
 }
@@ -0,0 +1,216 @@
+/*
+ * Copyright 2021-2026 the original author or authors.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *       https://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package io.github.davemeier82.homeautomation.influxdb2;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.time.Duration;
+import java.time.Instant;
+import java.util.Map;
+import java.util.Optional;
+import java.util.concurrent.ConcurrentHashMap;
+
+import static java.nio.file.StandardCopyOption.ATOMIC_MOVE;
+import static java.nio.file.StandardCopyOption.REPLACE_EXISTING;
+
+/**
+ * Keeps the latest value and timestamp of every device property in memory and persists them as a compact binary file.
+ * <p>
+ * Entries loaded from the file are marked as restored. They are served immediately and are reconciled against the database in the background. Because other writers
+ * (other nodes or bulk imports) do not update the entries, the owner should compare them with the database again once they are older than the maximum age.
+ */
+public class InfluxDb2LatestValueSnapshot {
+
+  private static final Logger log = LoggerFactory.getLogger(InfluxDb2LatestValueSnapshot.class);
+  private static final int MAGIC = 0x49444253;
+  private static final int FORMAT_VERSION = 1;
+  private static final byte BOOLEAN_TYPE = 'Z';
+  private static final byte INTEGER_TYPE = 'I';
+  private static final byte LONG_TYPE = 'J';
+  private static final byte FLOAT_TYPE = 'F';
+  private static final byte DOUBLE_TYPE = 'D';
+  private static final byte STRING_TYPE = 'S';
+  private static final Duration DEFAULT_MAX_AGE = Duration.ofMinutes(1);
+
+  private final Path path;
+  private final Duration maxAge;
+  private final Map<Key, Entry> entries = new ConcurrentHashMap<>();
+
+  public InfluxDb2LatestValueSnapshot(Path path) {
+    this(path, DEFAULT_MAX_AGE);
+  }
+
+  /**
+   * @param maxAge how long the entries are served without comparing them with the database again, {@code null} to never recheck them
+   */
+  public InfluxDb2LatestValueSnapshot(Path path, Duration maxAge) {
+    this.path = path;
+    this.maxAge = maxAge;
+  }
+
+  public Optional<Entry> get(Key key) {
+    return Optional.ofNullable(entries.get(key));
+  }
+
+  /**
+   * Stores the value if it is newer than (or as new as) the currently known one.
+   */
+  public void update(Key key, Object value, Instant time) {
+    if (value == null) {
+      return;
+    }
+    entries.merge(key, new Entry(value, time, false), (current, updated) -> updated.time().isBefore(current.time()) ? current : updated);
+  }
+
+  /**
+   * Marks an entry as compared with the database without changing its value.
+   */
+  public void markReconciled(Key key) {
+    entries.computeIfPresent(key, (k, entry) -> entry.restored() ? new Entry(entry.value(), entry.time(), false) : entry);
+  }
+
+  /**
+   * Marks all restored entries as compared with the database.
+   */
+  public void markAllReconciled() {
+    entries.keySet().forEach(this::markReconciled);
+  }
+
+  /**
+   * @return how long the entries are served without comparing them with the database again, {@code null} if they are never rechecked
+   */
+  public Duration getMaxAge() {
+    return maxAge;
+  }
+
+  public int size() {
+    return entries.size();
+  }
+
+  /**
+   * Loads the snapshot file if it exists. Entries that are already known and newer are kept.
+   */
+  public void load() {
+    if (!Files.isRegularFile(path)) {
+      log.debug("no latest value snapshot found at {}", path);
+      return;
+    }
+    try (DataInputStream in = new DataInputStream(new BufferedInputStream(Files.newInputStream(path)))) {
+      if (in.readInt() != MAGIC || in.readInt() != FORMAT_VERSION) {
+        log.warn("ignoring latest value snapshot {} with unknown format", path);
+        return;
+      }
+      int count = in.readInt();
+      for (int i = 0; i < count; i++) {
+        Key key = new Key(in.readUTF(), in.readUTF(), in.readUTF(), in.readUTF());
+        Instant time = Instant.ofEpochMilli(in.readLong());
+        Object value = readValue(in);
+        entries.merge(key, new Entry(value, time, true), (current, restored) -> restored.time().isAfter(current.time()) ? restored : current);
+      }
+      log.info("restored {} latest values from {}", count, path);
+    } catch (IOException e) {
+      log.error("failed to load latest value snapshot {}", path, e);
+    }
+  }
+
+  /**
+   * Writes all entries to a temporary file and atomically replaces the snapshot file with it.
+   */
+  public synchronized void save() {
+    Path tempFile = path.resolveSibling(path.getFileName() + ".tmp");
+    try {
+      if (path.getParent() != null) {
+        Files.createDirectories(path.getParent());
+      }
+      Map<Key, Entry> copy = Map.copyOf(entries);
+      try (DataOutputStream out = new DataOutputStream(new BufferedOutputStream(Files.newOutputStream(tempFile)))) {
+        out.writeInt(MAGIC);
+        out.writeInt(FORMAT_VERSION);
+        out.writeInt(copy.size());
+        for (Map.Entry<Key, Entry> e : copy.entrySet()) {
+          Key key = e.getKey();
+          out.writeUTF(key.measurement());
+          out.writeUTF(key.deviceType());
+          out.writeUTF(key.deviceId());
+          out.writeUTF(key.devicePropertyId());
+          out.writeLong(e.getValue().time().toEpochMilli());
+          writeValue(out, e.getValue().value());
+        }
+      }
+      Files.move(tempFile, path, REPLACE_EXISTING, ATOMIC_MOVE);
+      log.debug("saved {} latest values to {}", copy.size(), path);
+    } catch (IOException e) {
+      log.error("failed to save latest value snapshot {}", path, e);
+    }
+  }
+
+  private static void writeValue(DataOutputStream out, Object value) throws IOException {
+    switch (value) {
+      case Boolean b -> {
+        out.writeByte(BOOLEAN_TYPE);
+        out.writeBoolean(b);
+      }
+      case Integer i -> {
+        out.writeByte(INTEGER_TYPE);
+        out.writeInt(i);
+      }
+      case Long l -> {
+        out.writeByte(LONG_TYPE);
+        out.writeLong(l);
+      }
+      case Float f -> {
+        out.writeByte(FLOAT_TYPE);
+        out.writeFloat(f);
+      }
+      case Number n -> {
+        out.writeByte(DOUBLE_TYPE);
+        out.writeDouble(n.doubleValue());
+      }
+      default -> {
+        out.writeByte(STRING_TYPE);
+        out.writeUTF(value.toString());
+      }
+    }
+  }
+
+  private static Object readValue(DataInputStream in) throws IOException {
+    byte type = in.readByte();
+    return switch (type) {
+      case BOOLEAN_TYPE -> in.readBoolean();
+      case INTEGER_TYPE -> in.readInt();
+      case LONG_TYPE -> in.readLong();
+      case FLOAT_TYPE -> in.readFloat();
+      case DOUBLE_TYPE -> in.readDouble();
+      case STRING_TYPE -> in.readUTF();
+      default -> throw new IOException("unknown value type " + type);
+    };
+  }
+
+  public record Key(String measurement, String deviceType, String deviceId, String devicePropertyId) {
+  }
+
+  public record Entry(Object value, Instant time, boolean restored) {
+  }
+}
@@ -0,0 +1,127 @@
+/*
+ * Copyright 2021-2026 the original author or authors.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *       https://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package io.github.davemeier82.homeautomation.influxdb2;
+
+import io.github.davemeier82.homeautomation.core.device.Device;
+import org.springframework.scheduling.TaskScheduler;
+
+import java.time.Duration;
+import java.time.Instant;
+import java.util.Comparator;
+import java.util.List;
+import java.util.Map;
+import java.util.Optional;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.locks.ReadWriteLock;
+import java.util.concurrent.locks.ReentrantReadWriteLock;
+import java.util.function.Consumer;
+
+/**
+ * Collects the values of a device that have the same timestamp and passes them to the writer as one group after a short window.
+ * <p>
+ * Closing it passes the pending groups to the writer and later values are passed to it immediately. Flushes that were scheduled before find nothing to write, so
+ * they cannot write after the writer was closed.
+ */
+class InfluxDb2PointCoalescer {
+
+  private final TaskScheduler scheduler;
+  private final Duration window;
+  private final Consumer<Group> writer;
+  private final Map<Key, Group> groups = new ConcurrentHashMap<>();
+  private final ReadWriteLock closeLock = new ReentrantReadWriteLock();
+  private boolean closed;
+
+  InfluxDb2PointCoalescer(TaskScheduler scheduler, Duration window, Consumer<Group> writer) {
+    this.scheduler = scheduler;
+    this.window = window;
+    this.writer = writer;
+  }
+
+  void add(String deviceType, String deviceId, Device device, Instant time, Value value) {
+    Key key = new Key(deviceType, deviceId, time);
+    closeLock.readLock().lock();
+    try {
+      if (closed) {
+        writer.accept(new Group(key, device, List.of(value)));
+        return;
+      }
+      groups.compute(key, (k, existing) -> {
+        Group group = existing;
+        if (group == null) {
+          group = new Group(k, device, new CopyOnWriteArrayList<>());
+          scheduler.schedule(() -> flush(k), Instant.now().plus(window));
+        }
+        group.values().add(value);
+        return group;
+      });
+    } finally {
+      closeLock.readLock().unlock();
+    }
+  }
+
+  /**
+   * @return the latest value of a device property that is not written yet
+   */
+  Optional<Pending> findPending(String deviceType, String deviceId, String measurement, String devicePropertyId) {
+    return groups.values().stream()
+        .filter(group -> group.key().deviceType().equals(deviceType) && group.key().deviceId().equals(deviceId))
+        .flatMap(group -> group.values().stream()
+            .filter(value -> value.measurement().equals(measurement) && value.devicePropertyId().equals(devicePropertyId))
+            .map(value -> new Pending(value.value(), group.key().time())))
+        .max(Comparator.comparing(Pending::time));
+  }
+
+  /**
+   * Writes all pending groups immediately.
+   */
+  void flushAll() {
+    groups.keySet().forEach(this::flush);
+  }
+
+  /**
+   * Writes all pending groups and writes later values without collecting them. The flushes that are still scheduled do nothing afterwards.
+   */
+  void close() {
+    closeLock.writeLock().lock();
+    try {
+      closed = true;
+      flushAll();
+    } finally {
+      closeLock.writeLock().unlock();
+    }
+  }
+
+  private void flush(Key key) {
+    Group group = groups.remove(key);
+    if (group != null) {
+      writer.accept(group);
+    }
+  }
+
+  record Key(String deviceType, String deviceId, Instant time) {
+  }
+
+  record Group(Key key, Device device, List<Value> values) {
+  }
+
+  record Value(String measurement, String devicePropertyId, Object value) {
+  }
+
+  record Pending(Object value, Instant time) {
+  }
+}
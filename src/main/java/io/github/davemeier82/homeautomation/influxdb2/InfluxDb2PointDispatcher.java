@@ -0,0 +1,103 @@
+/*
+ * Copyright 2021-2026 the original author or authors.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *       https://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package io.github.davemeier82.homeautomation.influxdb2;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.time.Instant;
+import java.util.Collections;
+import java.util.IdentityHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.CopyOnWriteArrayList;
+
+/**
+ * Passes the points that are written by this application to the subscribers whose measurement and tags match,
+ * e.g. to evaluate power sensors without querying the database.
+ * <p>
+ * Listeners run in the thread that writes the point and may write points themselves. A point that is written while a listener of a subscription is running is not
+ * passed to the same subscription again, so subscribers that write points for each other (e.g. two power sensors that evaluate each other) cannot recurse.
+ */
+public class InfluxDb2PointDispatcher {
+
+  private static final Logger log = LoggerFactory.getLogger(InfluxDb2PointDispatcher.class);
+
+  private final Map<String, List<Subscription>> subscriptionsByMeasurement = new ConcurrentHashMap<>();
+  private final ThreadLocal<Set<Subscription>> runningSubscriptions = ThreadLocal.withInitial(() -> Collections.newSetFromMap(new IdentityHashMap<>()));
+  private final Set<Subscription> cyclicSubscriptions = ConcurrentHashMap.newKeySet();
+
+  /**
+   * @param measurement the measurement of the points
+   * @param tags        tags that the points must have, the points may have additional tags
+   * @param listener    gets called for every matching point in the thread that writes it
+   * @return the subscription, can be used to unsubscribe
+   */
+  public Subscription subscribe(String measurement, Map<String, String> tags, PointListener listener) {
+    Subscription subscription = new Subscription(measurement, Map.copyOf(tags), listener);
+    subscriptionsByMeasurement.computeIfAbsent(measurement, m -> new CopyOnWriteArrayList<>()).add(subscription);
+    return subscription;
+  }
+
+  public void unsubscribe(Subscription subscription) {
+    subscriptionsByMeasurement.computeIfPresent(subscription.measurement(), (measurement, subscriptions) -> {
+      subscriptions.remove(subscription);
+      return subscriptions.isEmpty() ? null : subscriptions;
+    });
+  }
+
+  public boolean hasSubscriptions(String measurement) {
+    return subscriptionsByMeasurement.containsKey(measurement);
+  }
+
+  public void dispatch(String measurement, Map<String, String> tags, Object value, Instant time) {
+    List<Subscription> subscriptions = subscriptionsByMeasurement.get(measurement);
+    if (subscriptions == null) {
+      return;
+    }
+    Set<Subscription> running = runningSubscriptions.get();
+    for (Subscription subscription : subscriptions) {
+      if (!tags.entrySet().containsAll(subscription.tags().entrySet())) {
+        continue;
+      }
+      if (!running.add(subscription)) {
+        if (cyclicSubscriptions.add(subscription)) {
+          log.warn("not dispatching point of measurement {} with tags {} to the subscription {} whose listener wrote it, the subscribers form a cycle", measurement, tags,
+              subscription.tags());
+        }
+        continue;
+      }
+      try {
+        subscription.listener().onPoint(tags, value, time);
+      } catch (RuntimeException e) {
+        log.error("failed to dispatch point of measurement {} with tags {}", measurement, tags, e);
+      } finally {
+        running.remove(subscription);
+      }
+    }
+  }
+
+  @FunctionalInterface
+  public interface PointListener {
+    void onPoint(Map<String, String> tags, Object value, Instant time);
+  }
+
+  public record Subscription(String measurement, Map<String, String> tags, PointListener listener) {
+  }
+}
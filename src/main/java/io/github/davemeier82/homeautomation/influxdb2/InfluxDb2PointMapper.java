@@ -0,0 +1,167 @@
+/*
+ * Copyright 2021-2026 the original author or authors.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *       https://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package io.github.davemeier82.homeautomation.influxdb2;
+
+import com.influxdb.client.domain.WritePrecision;
+import com.influxdb.client.write.Point;
+import io.github.davemeier82.homeautomation.core.device.Device;
+
+import java.time.Instant;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+import static io.github.davemeier82.homeautomation.influxdb2.InfluxDb2SchemaMapping.CUSTOM_IDENTIFIER_PREFIX;
+
+/**
+ * Creates the points of device property values. All values are written with this layout, no matter if they are inserted one by one or imported in bulk.
+ */
+public class InfluxDb2PointMapper {
+
+  public static final String VALUE_FIELD_NAME = "value";
+
+  private final InfluxDb2SchemaMapping schemaMapping;
+
+  public InfluxDb2PointMapper(InfluxDb2SchemaMapping schemaMapping) {
+    this.schemaMapping = schemaMapping;
+  }
+
+  /**
+   * @param measurement      the type name of the device property value type
+   * @param deviceType       the type name of the device
+   * @param deviceId         the id of the device
+   * @param devicePropertyId the id of the device property
+   * @param device           the device or {@code null} if it is not known
+   * @param unit             the unit of the value, may be {@code null}
+   * @param displayName      the display name of the device property, may be {@code null}
+   * @param value            the value, see {@link #toFieldValue(Object)}
+   * @param time             the time of the value, written with millisecond precision
+   */
+  public Point toPoint(String measurement,
+                       String deviceType,
+                       String deviceId,
+                       String devicePropertyId,
+                       Device device,
+                       String unit,
+                       String displayName,
+                       Object value,
+                       Instant time
+  ) {
+    Map<String, String> coreTags = coreTags(deviceType, deviceId, devicePropertyId);
+    Map<String, String> attributes = attributes(device, unit, displayName);
+    InfluxDb2SchemaMapping.MappedAttributes mapped = schemaMapping.map(measurement, coreTags, attributes);
+
+    Point point = new Point(measurement);
+    point.addTags(mapped.tags());
+    mapped.fields().forEach((name, val) -> point.addField(name, val));
+    point.time(time.toEpochMilli(), WritePrecision.MS);
+    addField(point, VALUE_FIELD_NAME, toFieldValue(value));
+    return point;
+  }
+
+  /**
+   * Creates one point with the values of several device properties that have the same timestamp.
+   * The point is tagged with the device only, the values are written to the fields named by {@link #coalescedFieldName(String, String)}.
+   * Per property attributes ({@code unit} and {@code displayName}) are not written.
+   *
+   * @param measurement the measurement of the merged points
+   * @param deviceType  the type name of the device
+   * @param deviceId    the id of the device
+   * @param device      the device or {@code null} if it is not known
+   * @param values      the values by field name, see {@link #toFieldValue(Object)}
+   * @param time        the time of the values, written with millisecond precision
+   */
+  public Point toCoalescedPoint(String measurement, String deviceType, String deviceId, Device device, Map<String, Object> values, Instant time) {
+    Map<String, String> coreTags = new LinkedHashMap<>();
+    coreTags.put("deviceId", deviceId);
+    coreTags.put("deviceType", deviceType);
+    Map<String, String> attributes = attributes(device, null, null);
+    InfluxDb2SchemaMapping.MappedAttributes mapped = schemaMapping.map(measurement, coreTags, attributes);
+
+    Point point = new Point(measurement);
+    point.addTags(mapped.tags());
+    mapped.fields().forEach((name, val) -> point.addField(name, val));
+    point.time(time.toEpochMilli(), WritePrecision.MS);
+    values.forEach((name, value) -> addField(point, name, toFieldValue(value)));
+    return point;
+  }
+
+  /**
+   * @param devicePropertyId the id of the device property
+   * @param valueType        the type name of the device property value type
+   * @return the name of the field of a value in a merged point
+   */
+  public static String coalescedFieldName(String devicePropertyId, String valueType) {
+    return devicePropertyId + "." + valueType;
+  }
+
+  private static void addField(Point point, String name, Object fieldValue) {
+    switch (fieldValue) {
+      case Boolean b -> point.addField(name, b);
+      case Integer i -> point.addField(name, i);
+      case Float f -> point.addField(name, f);
+      case Double d -> point.addField(name, d);
+      case Long l -> point.addField(name, l);
+      case Number n -> point.addField(name, n);
+      default -> point.addField(name, fieldValue.toString());
+    }
+  }
+
+  /**
+   * @return all tags of a point before the schema mapping is applied, attributes without a value are left out
+   */
+  public Map<String, String> toTags(String deviceType, String deviceId, String devicePropertyId, Device device, String unit, String displayName) {
+    Map<String, String> tags = coreTags(deviceType, deviceId, devicePropertyId);
+    attributes(device, unit, displayName).forEach((name, value) -> {
+      if (value != null) {
+        tags.put(name, value);
+      }
+    });
+    return tags;
+  }
+
+  private static Map<String, String> coreTags(String deviceType, String deviceId, String devicePropertyId) {
+    Map<String, String> coreTags = new LinkedHashMap<>();
+    coreTags.put("devicePropertyId", devicePropertyId);
+    coreTags.put("deviceId", deviceId);
+    coreTags.put("deviceType", deviceType);
+    return coreTags;
+  }
+
+  private static Map<String, String> attributes(Device device, String unit, String displayName) {
+    Map<String, String> attributes = new LinkedHashMap<>();
+    if (device != null) {
+      attributes.put("deviceDisplayName", device.getDisplayName());
+      device.getCustomIdentifiers().forEach((key, val) -> attributes.put(CUSTOM_IDENTIFIER_PREFIX + key, val));
+    }
+    attributes.put("unit", unit);
+    attributes.put("displayName", displayName);
+    return attributes;
+  }
+
+  /**
+   * @return the value as it is stored in the database: booleans, numbers and strings are kept, enums are stored by name and everything else as string
+   */
+  public static Object toFieldValue(Object value) {
+    return switch (value) {
+      case Boolean b -> b;
+      case Number n -> n;
+      case String s -> s;
+      case Enum<?> e -> e.name();
+      default -> value.toString();
+    };
+  }
+}
@@ -16,13 +16,32 @@
 
 package io.github.davemeier82.homeautomation.influxdb2;
 
+import com.influxdb.client.domain.WritePrecision;
 import org.springframework.boot.context.properties.ConfigurationProperties;
 import org.springframework.boot.context.properties.NestedConfigurationProperty;
 
+import java.time.Duration;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Map;
+import java.util.Set;
+
 @ConfigurationProperties("homeautomation.influxdb2")
 public class InfluxDb2Properties {
   @NestedConfigurationProperty
   private final TaskSchedulerProperties taskScheduler = new TaskSchedulerProperties();
+  @NestedConfigurationProperty
+  private final SnapshotProperties snapshot = new SnapshotProperties();
+  @NestedConfigurationProperty
+  private final SchemaProperties schema = new SchemaProperties();
+  @NestedConfigurationProperty
+  private final BulkImportProperties bulkImport = new BulkImportProperties();
+  @NestedConfigurationProperty
+  private final AdaptivePollingProperties adaptivePolling = new AdaptivePollingProperties();
+  @NestedConfigurationProperty
+  private final ProfilingProperties profiling = new ProfilingProperties();
+  @NestedConfigurationProperty
+  private final CoalescingProperties coalescing = new CoalescingProperties();
   private String url;
   private char[] token;
   private String organization;
@@ -64,6 +83,30 @@ public class InfluxDb2Properties {
     return taskScheduler;
   }
 
+  public SnapshotProperties getSnapshot() {
+    return snapshot;
+  }
+
+  public SchemaProperties getSchema() {
+    return schema;
+  }
+
+  public BulkImportProperties getBulkImport() {
+    return bulkImport;
+  }
+
+  public AdaptivePollingProperties getAdaptivePolling() {
+    return adaptivePolling;
+  }
+
+  public ProfilingProperties getProfiling() {
+    return profiling;
+  }
+
+  public CoalescingProperties getCoalescing() {
+    return coalescing;
+  }
+
   public static class TaskSchedulerProperties {
     private int poolSize = 3;
 
@@ -75,4 +118,312 @@ public class InfluxDb2Properties {
       this.poolSize = poolSize;
     }
   }
+
+  public static class SnapshotProperties {
+    /**
+     * File in which the latest value of every device property is stored. The snapshot is disabled if not set.
+     */
+    private String path;
+    private Duration interval = Duration.ofMinutes(5);
+    /**
+     * Interval in which the latest values written since the previous run are read in the background with one query, so that values written by other nodes or bulk
+     * imports are picked up. If not set, the latest values are only read once after startup.
+     */
+    private Duration maxAge = Duration.ofMinutes(1);
+
+    public String getPath() {
+      return path;
+    }
+
+    public void setPath(String path) {
+      this.path = path;
+    }
+
+    public Duration getInterval() {
+      return interval;
+    }
+
+    public void setInterval(Duration interval) {
+      this.interval = interval;
+    }
+
+    public Duration getMaxAge() {
+      return maxAge;
+    }
+
+    public void setMaxAge(Duration maxAge) {
+      this.maxAge = maxAge;
+    }
+  }
+
+  public static class SchemaProperties {
+    /**
+     * Mapping per attribute name (deviceDisplayName, unit, displayName or ci-&lt;custom identifier&gt;). Attributes that are not listed are written as tags.
+     */
+    private final Map<String, InfluxDb2SchemaMapping.AttributeMapping> attributes = new HashMap<>();
+    /**
+     * Mapping of custom identifiers that are not listed in the attributes.
+     */
+    private InfluxDb2SchemaMapping.AttributeMapping customIdentifiers = InfluxDb2SchemaMapping.AttributeMapping.TAG;
+    /**
+     * Maximum number of distinct series per measurement, 0 disables the limit.
+     */
+    private int maxSeriesPerMeasurement = 0;
+    private InfluxDb2SchemaMapping.CardinalityAction cardinalityAction = InfluxDb2SchemaMapping.CardinalityAction.WARN;
+
+    public Map<String, InfluxDb2SchemaMapping.AttributeMapping> getAttributes() {
+      return attributes;
+    }
+
+    public InfluxDb2SchemaMapping.AttributeMapping getCustomIdentifiers() {
+      return customIdentifiers;
+    }
+
+    public void setCustomIdentifiers(InfluxDb2SchemaMapping.AttributeMapping customIdentifiers) {
+      this.customIdentifiers = customIdentifiers;
+    }
+
+    public int getMaxSeriesPerMeasurement() {
+      return maxSeriesPerMeasurement;
+    }
+
+    public void setMaxSeriesPerMeasurement(int maxSeriesPerMeasurement) {
+      this.maxSeriesPerMeasurement = maxSeriesPerMeasurement;
+    }
+
+    public InfluxDb2SchemaMapping.CardinalityAction getCardinalityAction() {
+      return cardinalityAction;
+    }
+
+    public void setCardinalityAction(InfluxDb2SchemaMapping.CardinalityAction cardinalityAction) {
+      this.cardinalityAction = cardinalityAction;
+    }
+  }
+
+  public static class BulkImportProperties {
+    /**
+     * File that is imported in the background after startup. No import is done if not set.
+     */
+    private String file;
+    private InfluxDb2BulkImporter.Format format = InfluxDb2BulkImporter.Format.CSV;
+    /**
+     * Precision of the timestamps in line protocol files.
+     */
+    private WritePrecision precision = WritePrecision.NS;
+    /**
+     * File in which the progress is stored. Defaults to the imported file with the suffix .checkpoint.
+     */
+    private String checkpointFile;
+    private int chunkSize = 5000;
+    private int parallelism = 4;
+
+    public String getFile() {
+      return file;
+    }
+
+    public void setFile(String file) {
+      this.file = file;
+    }
+
+    public InfluxDb2BulkImporter.Format getFormat() {
+      return format;
+    }
+
+    public void setFormat(InfluxDb2BulkImporter.Format format) {
+      this.format = format;
+    }
+
+    public WritePrecision getPrecision() {
+      return precision;
+    }
+
+    public void setPrecision(WritePrecision precision) {
+      this.precision = precision;
+    }
+
+    public String getCheckpointFile() {
+      return checkpointFile;
+    }
+
+    public void setCheckpointFile(String checkpointFile) {
+      this.checkpointFile = checkpointFile;
+    }
+
+    public int getChunkSize() {
+      return chunkSize;
+    }
+
+    public void setChunkSize(int chunkSize) {
+      this.chunkSize = chunkSize;
+    }
+
+    public int getParallelism() {
+      return parallelism;
+    }
+
+    public void setParallelism(int parallelism) {
+      this.parallelism = parallelism;
+    }
+  }
+
+  public static class AdaptivePollingProperties {
+    /**
+     * Polls the power sensors with an adaptive interval instead of their cron expression.
+     */
+    private boolean enabled = false;
+    private Duration minInterval = Duration.ofSeconds(10);
+    private Duration maxInterval = Duration.ofMinutes(5);
+    /**
+     * Fraction of the distance between the off and on threshold within which a power value counts as close to the thresholds.
+     */
+    private double thresholdMargin = 0.2;
+    /**
+     * Fraction of the distance between the off and on threshold by which the power value may change between two polls without counting as changed, so that
+     * noisy standby values do not prevent the back off.
+     */
+    private double changeTolerance = 0.05;
+
+    public boolean isEnabled() {
+      return enabled;
+    }
+
+    public void setEnabled(boolean enabled) {
+      this.enabled = enabled;
+    }
+
+    public Duration getMinInterval() {
+      return minInterval;
+    }
+
+    public void setMinInterval(Duration minInterval) {
+      this.minInterval = minInterval;
+    }
+
+    public Duration getMaxInterval() {
+      return maxInterval;
+    }
+
+    public void setMaxInterval(Duration maxInterval) {
+      this.maxInterval = maxInterval;
+    }
+
+    public double getThresholdMargin() {
+      return thresholdMargin;
+    }
+
+    public void setThresholdMargin(double thresholdMargin) {
+      this.thresholdMargin = thresholdMargin;
+    }
+
+    public double getChangeTolerance() {
+      return changeTolerance;
+    }
+
+    public void setChangeTolerance(double changeTolerance) {
+      this.changeTolerance = changeTolerance;
+    }
+  }
+
+  public static class ProfilingProperties {
+    /**
+     * Measures the queries and logs slow queries.
+     */
+    private boolean enabled = false;
+    /**
+     * Fraction of the queries (0 to 1) that are executed with the Flux profiler.
+     */
+    private double sampleRate = 0.1;
+    private Duration slowQueryThreshold = Duration.ofSeconds(1);
+    /**
+     * Number of slow queries that are kept in memory.
+     */
+    private int bufferSize = 100;
+
+    public boolean isEnabled() {
+      return enabled;
+    }
+
+    public void setEnabled(boolean enabled) {
+      this.enabled = enabled;
+    }
+
+    public double getSampleRate() {
+      return sampleRate;
+    }
+
+    public void setSampleRate(double sampleRate) {
+      this.sampleRate = sampleRate;
+    }
+
+    public Duration getSlowQueryThreshold() {
+      return slowQueryThreshold;
+    }
+
+    public void setSlowQueryThreshold(Duration slowQueryThreshold) {
+      this.slowQueryThreshold = slowQueryThreshold;
+    }
+
+    public int getBufferSize() {
+      return bufferSize;
+    }
+
+    public void setBufferSize(int bufferSize) {
+      this.bufferSize = bufferSize;
+    }
+  }
+
+  public static class CoalescingProperties {
+    /**
+     * Merges the values of a device with the same timestamp into one point with multiple fields.
+     * This changes the layout of the configured measurements: their values are written to the merged measurement in fields named
+     * {@code <devicePropertyId>.<measurement>} without unit and display name, so Flux queries of sensors, dashboards and other readers have to be adapted.
+     * Only this repository reads both layouts. Do not list measurements that power sensor queries read, sensors that subscribe to them still get the pushed values
+     * but their polling queries would have to read the merged points.
+     */
+    private boolean enabled = false;
+    /**
+     * Measurements (device property value types) whose values are merged, e.g. {@code energy}, {@code voltage} and {@code current}.
+     */
+    private Set<String> measurements = new HashSet<>();
+    /**
+     * How long values are collected before the merged point is written.
+     */
+    private Duration window = Duration.ofMillis(500);
+    /**
+     * Measurement of the merged points.
+     */
+    private String measurement = "device";
+
+    public boolean isEnabled() {
+      return enabled;
+    }
+
+    public void setEnabled(boolean enabled) {
+      this.enabled = enabled;
+    }
+
+    public Set<String> getMeasurements() {
+      return measurements;
+    }
+
+    public void setMeasurements(Set<String> measurements) {
+      this.measurements = measurements;
+    }
+
+    public Duration getWindow() {
+      return window;
+    }
+
+    public void setWindow(Duration window) {
+      this.window = window;
+    }
+
+    public String getMeasurement() {
+      return measurement;
+    }
+
+    public void setMeasurement(String measurement) {
+      this.measurement = measurement;
+    }
+  }
 }
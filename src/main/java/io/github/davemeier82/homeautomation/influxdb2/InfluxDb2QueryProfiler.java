@@ -0,0 +1,256 @@
+/*
+ * Copyright 2021-2026 the original author or authors.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *       https://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package io.github.davemeier82.homeautomation.influxdb2;
+
+import com.influxdb.client.QueryApi;
+import com.influxdb.query.FluxRecord;
+import com.influxdb.query.FluxTable;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.time.Duration;
+import java.time.Instant;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Deque;
+import java.util.List;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.function.Consumer;
+
+/**
+ * Executes Flux queries and optionally measures them.
+ * <p>
+ * If enabled, a sample of the queries is executed with the Flux {@code profiler} to capture the execution time per operator and the number of scanned values.
+ * Queries that take longer than the threshold are logged to the {@value #SLOW_QUERY_LOGGER_NAME} logger and kept in a bounded buffer, including queries that failed
+ * after the threshold (e.g. because of a timeout). The profiles of the sampled queries are logged at debug level and kept in a separate buffer of the same size,
+ * whether they are slow or not.
+ */
+public class InfluxDb2QueryProfiler {
+
+  public static final String SLOW_QUERY_LOGGER_NAME = "io.github.davemeier82.homeautomation.influxdb2.SlowQueryLog";
+  private static final Logger slowQueryLog = LoggerFactory.getLogger(SLOW_QUERY_LOGGER_NAME);
+  private static final String PROFILER_IMPORT = "import \"profiler\"";
+  private static final String PROFILER_OPTION = "option profiler.enabledProfilers = [\"query\", \"operator\"]";
+  private static final String QUERY_PROFILE = "profiler/query";
+  private static final String OPERATOR_PROFILE = "profiler/operator";
+
+  private final QueryApi queryApi;
+  private final boolean enabled;
+  private final double sampleRate;
+  private final Duration slowQueryThreshold;
+  private final int bufferSize;
+  private final Deque<SlowQuery> slowQueries = new ArrayDeque<>();
+  private final Deque<SlowQuery> sampledQueries = new ArrayDeque<>();
+
+  /**
+   * Creates a profiler that only executes the queries.
+   */
+  public InfluxDb2QueryProfiler(QueryApi queryApi) {
+    this(queryApi, false, 0, Duration.ZERO, 0);
+  }
+
+  /**
+   * @param enabled            measures the queries if {@code true}
+   * @param sampleRate         fraction of the queries (0 to 1) that are executed with the Flux profiler
+   * @param slowQueryThreshold queries that take at least this long are logged and kept in the buffer
+   * @param bufferSize         number of slow queries and of sampled queries that are kept
+   */
+  public InfluxDb2QueryProfiler(QueryApi queryApi, boolean enabled, double sampleRate, Duration slowQueryThreshold, int bufferSize) {
+    this.queryApi = queryApi;
+    this.enabled = enabled;
+    this.sampleRate = sampleRate;
+    this.slowQueryThreshold = slowQueryThreshold;
+    this.bufferSize = bufferSize;
+  }
+
+  /**
+   * Executes the query. The tables of the Flux profiler are not part of the result.
+   */
+  public List<FluxTable> query(String query) {
+    if (!enabled) {
+      return queryApi.query(query);
+    }
+    boolean sampled = !query.contains(PROFILER_IMPORT) && ThreadLocalRandom.current().nextDouble() < sampleRate;
+    long start = System.nanoTime();
+    List<FluxTable> tables;
+    boolean completed = false;
+    try {
+      tables = queryApi.query(sampled ? withProfiler(query) : query);
+      completed = true;
+    } finally {
+      if (!completed) {
+        Duration duration = Duration.ofNanos(System.nanoTime() - start);
+        if (duration.compareTo(slowQueryThreshold) >= 0) {
+          slowQueryLog.warn("query failed after {} ms: {}", duration.toMillis(), query);
+          addSlowQuery(new SlowQuery(Instant.now(), query, duration, 0, null, null, List.of(), true));
+        }
+      }
+    }
+    Duration duration = Duration.ofNanos(System.nanoTime() - start);
+
+    List<FluxTable> result = new ArrayList<>(tables.size());
+    List<OperatorProfile> operators = new ArrayList<>();
+    Long scannedValues = null;
+    Long scannedBytes = null;
+    for (FluxTable table : tables) {
+      List<FluxRecord> records = table.getRecords();
+      Object measurement = records.isEmpty() ? null : records.getFirst().getValueByKey("_measurement");
+      if (sampled && QUERY_PROFILE.equals(measurement)) {
+        scannedValues = toLong(records.getFirst().getValueByKey("influxdb/scanned-values"));
+        scannedBytes = toLong(records.getFirst().getValueByKey("influxdb/scanned-bytes"));
+      } else if (sampled && OPERATOR_PROFILE.equals(measurement)) {
+        records.forEach(record -> operators.add(new OperatorProfile(String.valueOf(record.getValueByKey("Type")),
+            String.valueOf(record.getValueByKey("Label")),
+            toLong(record.getValueByKey("Count")),
+            toDuration(record.getValueByKey("DurationSum")),
+            toDuration(record.getValueByKey("MaxDuration")))));
+      } else {
+        result.add(table);
+      }
+    }
+
+    boolean slow = duration.compareTo(slowQueryThreshold) >= 0;
+    if (slow || sampled) {
+      long rows = result.stream().mapToLong(table -> table.getRecords().size()).sum();
+      SlowQuery profile = new SlowQuery(Instant.now(), query, duration, rows, scannedValues, scannedBytes, List.copyOf(operators), false);
+      if (slow) {
+        slowQueryLog.warn("query took {} ms, returned {} rows, scanned {} values: {}{}", duration.toMillis(), rows, scannedValues == null ? "?" : scannedValues, query,
+            operators.isEmpty() ? "" : "\n" + operators);
+        addSlowQuery(profile);
+      } else {
+        slowQueryLog.debug("profiled query took {} ms, returned {} rows, scanned {} values: {}\n{}", duration.toMillis(), rows, scannedValues == null ? "?" : scannedValues,
+            query, operators);
+      }
+      if (sampled) {
+        addSampledQuery(profile);
+      }
+    }
+    return result;
+  }
+
+  /**
+   * Executes the query and passes the records to the consumer while they are read, so the result is never held in memory as a whole. The query is not executed
+   * with the Flux profiler but it is still timed.
+   *
+   * @throws com.influxdb.exceptions.InfluxException if the query failed
+   */
+  public void query(String query, Consumer<FluxRecord> onRecord) {
+    CompletableFuture<Void> done = new CompletableFuture<>();
+    AtomicLong rows = new AtomicLong();
+    long start = System.nanoTime();
+    boolean completed = false;
+    try {
+      queryApi.query(query, (cancellable, record) -> {
+        rows.incrementAndGet();
+        onRecord.accept(record);
+      }, done::completeExceptionally, () -> done.complete(null));
+      done.join();
+      completed = true;
+    } catch (CompletionException e) {
+      throw e.getCause() instanceof RuntimeException cause ? cause : e;
+    } finally {
+      Duration duration = Duration.ofNanos(System.nanoTime() - start);
+      if (enabled && duration.compareTo(slowQueryThreshold) >= 0) {
+        if (completed) {
+          slowQueryLog.warn("query took {} ms, returned {} rows: {}", duration.toMillis(), rows.get(), query);
+        } else {
+          slowQueryLog.warn("query failed after {} ms: {}", duration.toMillis(), query);
+        }
+        addSlowQuery(new SlowQuery(Instant.now(), query, duration, rows.get(), null, null, List.of(), !completed));
+      }
+    }
+  }
+
+  /**
+   * Enables the query and operator profilers. The profiler import has to follow the imports (and leading comments) of the query and the option has to precede its
+   * statements.
+   */
+  static String withProfiler(String query) {
+    String[] lines = query.split("\n", -1);
+    int statementStart = 0;
+    while (statementStart < lines.length && (lines[statementStart].isBlank() || lines[statementStart].strip().startsWith("import ")
+        || lines[statementStart].strip().startsWith("//"))) {
+      statementStart++;
+    }
+    StringBuilder profiled = new StringBuilder();
+    for (int i = 0; i < statementStart; i++) {
+      profiled.append(lines[i]).append('\n');
+    }
+    profiled.append(PROFILER_IMPORT).append('\n').append(PROFILER_OPTION).append('\n');
+    for (int i = statementStart; i < lines.length; i++) {
+      profiled.append(lines[i]);
+      if (i < lines.length - 1) {
+        profiled.append('\n');
+      }
+    }
+    return profiled.toString();
+  }
+
+  private synchronized void addSlowQuery(SlowQuery slowQuery) {
+    addBounded(slowQueries, slowQuery);
+  }
+
+  private synchronized void addSampledQuery(SlowQuery sampledQuery) {
+    addBounded(sampledQueries, sampledQuery);
+  }
+
+  private void addBounded(Deque<SlowQuery> queries, SlowQuery query) {
+    if (bufferSize <= 0) {
+      return;
+    }
+    if (queries.size() >= bufferSize) {
+      queries.removeFirst();
+    }
+    queries.addLast(query);
+  }
+
+  /**
+   * @return the latest slow queries, oldest first
+   */
+  public synchronized List<SlowQuery> getSlowQueries() {
+    return List.copyOf(slowQueries);
+  }
+
+  /**
+   * @return the latest queries that were executed with the Flux profiler, oldest first. Includes the sampled queries that are slow.
+   */
+  public synchronized List<SlowQuery> getSampledQueries() {
+    return List.copyOf(sampledQueries);
+  }
+
+  private static Long toLong(Object value) {
+    return value instanceof Number number ? number.longValue() : null;
+  }
+
+  private static Duration toDuration(Object nanos) {
+    return nanos instanceof Number number ? Duration.ofNanos(number.longValue()) : null;
+  }
+
+  /**
+   * @param operators the execution times per operator, empty if the query was not profiled
+   * @param failed    {@code true} if the query threw an exception, e.g. because of a timeout
+   */
+  public record SlowQuery(Instant time, String query, Duration duration, long rowsReturned, Long scannedValues, Long scannedBytes, List<OperatorProfile> operators,
+                          boolean failed) {
+  }
+
+  public record OperatorProfile(String type, String label, Long count, Duration durationSum, Duration maxDuration) {
+  }
+}
@@ -0,0 +1,199 @@
+/*
+ * Copyright 2021-2026 the original author or authors.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *       https://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package io.github.davemeier82.homeautomation.influxdb2;
+
+import com.influxdb.exceptions.InfluxException;
+import com.influxdb.query.FluxRecord;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.Set;
+import java.util.TreeMap;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Decides which optional attributes of a point (e.g. {@code displayName}, {@code unit} or the {@code ci-*} custom identifiers) are written as tags, as fields or not at all.
+ * <p>
+ * The core tags ({@code devicePropertyId}, {@code deviceId} and {@code deviceType}) are always written as tags because all queries filter on them.
+ * If a series limit per measurement is configured, the number of distinct series is tracked and either a warning is logged or the optional tags of new series are
+ * demoted to fields once the limit is reached. The series that already exist in the database can be loaded with {@link #loadSeries(InfluxDb2QueryProfiler, String)} so that
+ * the limit is not reset by a restart. Only the keys of the series within the limit are kept, series beyond it are only counted.
+ */
+public class InfluxDb2SchemaMapping {
+
+  public static final String CUSTOM_IDENTIFIER_PREFIX = "ci-";
+  private static final Logger log = LoggerFactory.getLogger(InfluxDb2SchemaMapping.class);
+
+  private final Map<String, AttributeMapping> attributes;
+  private final AttributeMapping customIdentifiers;
+  private final int maxSeriesPerMeasurement;
+  private final CardinalityAction cardinalityAction;
+  private final Map<String, Set<String>> seriesByMeasurement = new ConcurrentHashMap<>();
+  private final Map<String, AtomicInteger> overflowByMeasurement = new ConcurrentHashMap<>();
+  private final Set<String> limitExceededMeasurements = ConcurrentHashMap.newKeySet();
+
+  /**
+   * Maps all attributes to tags without any cardinality limit.
+   */
+  public InfluxDb2SchemaMapping() {
+    this(Map.of(), AttributeMapping.TAG, 0, CardinalityAction.WARN);
+  }
+
+  /**
+   * @param attributes              mapping per attribute name, custom identifiers are prefixed with {@value #CUSTOM_IDENTIFIER_PREFIX}. Attributes that are not listed are written as tags.
+   * @param customIdentifiers       default mapping of custom identifiers that are not listed in {@code attributes}
+   * @param maxSeriesPerMeasurement maximum number of distinct series per measurement, 0 disables the limit
+   * @param cardinalityAction       what to do with new series once the limit is reached
+   */
+  public InfluxDb2SchemaMapping(Map<String, AttributeMapping> attributes, AttributeMapping customIdentifiers, int maxSeriesPerMeasurement, CardinalityAction cardinalityAction) {
+    this.attributes = Map.copyOf(attributes);
+    this.customIdentifiers = customIdentifiers;
+    this.maxSeriesPerMeasurement = maxSeriesPerMeasurement;
+    this.cardinalityAction = cardinalityAction;
+  }
+
+  /**
+   * Maps the attributes of a point.
+   *
+   * @param measurement the measurement of the point
+   * @param coreTags    tags that are always written as tags
+   * @param attributes  optional attributes, values that are {@code null} are ignored
+   * @return the tags and (string) fields to write
+   */
+  public MappedAttributes map(String measurement, Map<String, String> coreTags, Map<String, String> attributes) {
+    Map<String, String> tags = new LinkedHashMap<>(coreTags);
+    Map<String, String> fields = new LinkedHashMap<>();
+    Map<String, String> optionalTags = new LinkedHashMap<>();
+    attributes.forEach((name, value) -> {
+      if (value != null) {
+        switch (mappingOf(name)) {
+          case TAG -> optionalTags.put(name, value);
+          case FIELD -> fields.put(name, value);
+          case DROP -> {
+          }
+        }
+      }
+    });
+    tags.putAll(optionalTags);
+
+    if (maxSeriesPerMeasurement > 0 && !isKnownOrAddSeries(measurement, tags)) {
+      if (limitExceededMeasurements.add(measurement)) {
+        log.warn("measurement {} exceeded the limit of {} series, {}", measurement, maxSeriesPerMeasurement,
+            cardinalityAction == CardinalityAction.DEMOTE ? "tags of new series are written as fields" : "consider mapping high cardinality attributes to fields");
+      }
+      if (cardinalityAction == CardinalityAction.DEMOTE) {
+        optionalTags.keySet().forEach(tags::remove);
+        fields.putAll(optionalTags);
+      }
+    }
+    return new MappedAttributes(tags, fields);
+  }
+
+  /**
+   * Registers the series that already exist in the bucket. The records are streamed, so this can run in the background while points are written. Does nothing if
+   * no limit is configured.
+   */
+  public void loadSeries(InfluxDb2QueryProfiler queryProfiler, String bucket) {
+    if (maxSeriesPerMeasurement <= 0) {
+      return;
+    }
+    // last() returns one row per series, its tag columns are the series key
+    String query = "from(bucket: \"" + bucket + "\")\n" +
+        "  |> range(start: 0)\n" +
+        "  |> last()";
+    try {
+      queryProfiler.query(query, record -> addSeries(record.getMeasurement(), tagsOf(record)));
+    } catch (InfluxException e) {
+      log.error("failed to load existing series, the series limit only counts series written since startup", e);
+      return;
+    }
+    log.info("loaded existing series: {}", getSeriesCardinality());
+  }
+
+  private static Map<String, String> tagsOf(FluxRecord record) {
+    Map<String, String> tags = new LinkedHashMap<>();
+    record.getValues().forEach((column, value) -> {
+      if (value != null && !column.startsWith("_") && !column.equals("result") && !column.equals("table")) {
+        tags.put(column, value.toString());
+      }
+    });
+    return tags;
+  }
+
+  /**
+   * Registers an existing series. Once the limit of the measurement is reached, further series are only counted.
+   */
+  private void addSeries(String measurement, Map<String, String> tags) {
+    if (measurement == null) {
+      return;
+    }
+    Set<String> series = seriesByMeasurement.computeIfAbsent(measurement, m -> ConcurrentHashMap.newKeySet());
+    String seriesKey = new TreeMap<>(tags).toString();
+    synchronized (series) {
+      if (!series.contains(seriesKey) && (series.size() >= maxSeriesPerMeasurement || !series.add(seriesKey))) {
+        overflowByMeasurement.computeIfAbsent(measurement, m -> new AtomicInteger()).incrementAndGet();
+      }
+    }
+  }
+
+  private AttributeMapping mappingOf(String name) {
+    AttributeMapping mapping = attributes.get(name);
+    if (mapping != null) {
+      return mapping;
+    }
+    return name.startsWith(CUSTOM_IDENTIFIER_PREFIX) ? customIdentifiers : AttributeMapping.TAG;
+  }
+
+  private boolean isKnownOrAddSeries(String measurement, Map<String, String> tags) {
+    Set<String> series = seriesByMeasurement.computeIfAbsent(measurement, m -> ConcurrentHashMap.newKeySet());
+    String seriesKey = new TreeMap<>(tags).toString();
+    if (series.contains(seriesKey)) {
+      return true;
+    }
+    synchronized (series) {
+      return series.size() < maxSeriesPerMeasurement && series.add(seriesKey) || series.contains(seriesKey);
+    }
+  }
+
+  /**
+   * @return the number of distinct series per measurement that exist in the database (if they were loaded) or were written since startup. Series beyond the limit
+   * that were loaded from the database are counted per field. Only tracked if a limit is configured.
+   */
+  public Map<String, Integer> getSeriesCardinality() {
+    Map<String, Integer> cardinality = new TreeMap<>();
+    seriesByMeasurement.forEach((measurement, series) -> cardinality.put(measurement, series.size()));
+    overflowByMeasurement.forEach((measurement, overflow) -> cardinality.merge(measurement, overflow.get(), Integer::sum));
+    return cardinality;
+  }
+
+  public enum AttributeMapping {
+    TAG,
+    FIELD,
+    DROP
+  }
+
+  public enum CardinalityAction {
+    WARN,
+    DEMOTE
+  }
+
+  public record MappedAttributes(Map<String, String> tags, Map<String, String> fields) {
+  }
+}
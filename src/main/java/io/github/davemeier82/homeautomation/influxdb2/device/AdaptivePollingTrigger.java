@@ -0,0 +1,63 @@
+/*
+ * Copyright 2021-2026 the original author or authors.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *       https://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package io.github.davemeier82.homeautomation.influxdb2.device;
+
+import org.springframework.scheduling.Trigger;
+import org.springframework.scheduling.TriggerContext;
+
+import java.time.Duration;
+import java.time.Instant;
+
+/**
+ * Polls a power sensor with the minimum interval while it is active and doubles the interval up to the maximum interval while it is idle.
+ */
+public class AdaptivePollingTrigger implements Trigger {
+
+  private final InfluxDb2PowerSensor sensor;
+  private final Duration minInterval;
+  private final Duration maxInterval;
+  private final double thresholdMargin;
+  private final double changeTolerance;
+  private Duration interval;
+
+  /**
+   * @param maxInterval must not exceed the time range of the sensor's query, otherwise values between two polls are missed
+   */
+  public AdaptivePollingTrigger(InfluxDb2PowerSensor sensor, Duration minInterval, Duration maxInterval, double thresholdMargin, double changeTolerance) {
+    this.sensor = sensor;
+    this.minInterval = minInterval;
+    this.maxInterval = maxInterval;
+    this.thresholdMargin = thresholdMargin;
+    this.changeTolerance = changeTolerance;
+    interval = minInterval;
+  }
+
+  @Override
+  public synchronized Instant nextExecution(TriggerContext triggerContext) {
+    Instant lastCompletion = triggerContext.lastCompletion();
+    if (lastCompletion == null) {
+      return triggerContext.getClock().instant();
+    }
+    if (sensor.isActive(thresholdMargin, changeTolerance)) {
+      interval = minInterval;
+    } else {
+      Duration doubled = interval.multipliedBy(2);
+      interval = doubled.compareTo(maxInterval) > 0 ? maxInterval : doubled;
+    }
+    return lastCompletion.plus(interval);
+  }
+}
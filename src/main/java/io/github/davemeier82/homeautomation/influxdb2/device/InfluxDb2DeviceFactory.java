@@ -24,6 +24,9 @@ import io.github.davemeier82.homeautomation.core.repositories.DevicePropertyValu
 import io.github.davemeier82.homeautomation.core.repositories.DeviceRepository;
 import io.github.davemeier82.homeautomation.core.updater.PowerValueUpdateService;
 import io.github.davemeier82.homeautomation.core.updater.RelayStateValueUpdateService;
+import io.github.davemeier82.homeautomation.influxdb2.InfluxDb2PointDispatcher;
+import io.github.davemeier82.homeautomation.influxdb2.InfluxDb2Properties;
+import io.github.davemeier82.homeautomation.influxdb2.InfluxDb2QueryProfiler;
 import net.javacrumbs.shedlock.core.DefaultLockingTaskExecutor;
 import net.javacrumbs.shedlock.core.LockConfiguration;
 import net.javacrumbs.shedlock.core.LockProvider;
@@ -31,10 +34,13 @@ import net.javacrumbs.shedlock.core.LockingTaskExecutor;
 import org.springframework.boot.context.event.ApplicationReadyEvent;
 import org.springframework.context.event.EventListener;
 import org.springframework.scheduling.TaskScheduler;
+import org.springframework.scheduling.Trigger;
+import org.springframework.scheduling.support.CronExpression;
 import org.springframework.scheduling.support.CronTrigger;
 
 import java.time.Duration;
 import java.time.Instant;
+import java.time.ZonedDateTime;
 import java.util.HashSet;
 import java.util.Map;
 import java.util.Optional;
@@ -42,19 +48,23 @@ import java.util.Set;
 
 import static io.github.davemeier82.homeautomation.influxdb2.device.InfluxDb2DeviceType.INFLUX_DB2_POWER_SENSOR;
 import static io.github.davemeier82.homeautomation.influxdb2.device.InfluxDb2PowerSensor.*;
+import static java.lang.Boolean.parseBoolean;
 import static java.lang.Double.parseDouble;
+import static java.util.Objects.requireNonNull;
 
 public class InfluxDb2DeviceFactory implements DeviceFactory {
 
   public static final Set<DeviceType> SUPPORTED_DEVICE_TYPES = Set.of(INFLUX_DB2_POWER_SENSOR);
   private final TaskScheduler scheduler;
-  private final QueryApi queryApi;
+  private final InfluxDb2QueryProfiler queryProfiler;
   private final PowerValueUpdateService powerValueUpdateService;
   private final RelayStateValueUpdateService relayStateValueUpdateService;
   private final DevicePropertyValueRepository devicePropertyValueRepository;
   private final DeviceRepository deviceRepository;
   private final Set<String> scheduledIds = new HashSet<>();
   private final LockingTaskExecutor executor;
+  private final InfluxDb2Properties.AdaptivePollingProperties adaptivePolling;
+  private final InfluxDb2PointDispatcher pointDispatcher;
 
   public InfluxDb2DeviceFactory(TaskScheduler scheduler,
                                 QueryApi queryApi,
@@ -63,14 +73,34 @@ public class InfluxDb2DeviceFactory implements DeviceFactory {
                                 DevicePropertyValueRepository devicePropertyValueRepository,
                                 DeviceRepository deviceRepository,
                                 LockProvider lockProvider
+  ) {
+    this(scheduler, new InfluxDb2QueryProfiler(queryApi), powerValueUpdateService, relayStateValueUpdateService, devicePropertyValueRepository, deviceRepository, lockProvider,
+        new InfluxDb2Properties.AdaptivePollingProperties(), null);
+  }
+
+  /**
+   * @param adaptivePolling if enabled, the sensors are polled with an adaptive interval instead of their cron expression
+   * @param pointDispatcher passes the power values written by this application to the sensors that subscribed to them. May be {@code null}.
+   */
+  public InfluxDb2DeviceFactory(TaskScheduler scheduler,
+                                InfluxDb2QueryProfiler queryProfiler,
+                                PowerValueUpdateService powerValueUpdateService,
+                                RelayStateValueUpdateService relayStateValueUpdateService,
+                                DevicePropertyValueRepository devicePropertyValueRepository,
+                                DeviceRepository deviceRepository,
+                                LockProvider lockProvider,
+                                InfluxDb2Properties.AdaptivePollingProperties adaptivePolling,
+                                InfluxDb2PointDispatcher pointDispatcher
   ) {
     this.scheduler = scheduler;
-    this.queryApi = queryApi;
+    this.queryProfiler = queryProfiler;
     this.powerValueUpdateService = powerValueUpdateService;
     this.relayStateValueUpdateService = relayStateValueUpdateService;
     this.devicePropertyValueRepository = devicePropertyValueRepository;
     this.deviceRepository = deviceRepository;
     executor = new DefaultLockingTaskExecutor(lockProvider);
+    this.adaptivePolling = adaptivePolling;
+    this.pointDispatcher = pointDispatcher;
   }
 
   @Override
@@ -88,11 +118,14 @@ public class InfluxDb2DeviceFactory implements DeviceFactory {
     if (supportsDeviceType(type)) {
       InfluxDb2PowerSensor influxDb2PowerSensor = new InfluxDb2PowerSensor(id,
           displayName,
-          queryApi,
+          queryProfiler,
           parameters.get(QUERY_PARAMETER),
           parseDouble(parameters.get(ON_THRESHOLD_PARAMETER)),
           parseDouble(parameters.get(OFF_THRESHOLD_PARAMETER)),
           parameters.get(UPDATE_CRON_EXPRESSION_PARAMETER),
+          parseBoolean(parameters.get(SERVER_SIDE_THRESHOLD_PARAMETER)),
+          parameters.get(PUSH_MEASUREMENT_PARAMETER),
+          parameters.get(PUSH_TAGS_PARAMETER),
           customIdentifiers,
           powerValueUpdateService,
           relayStateValueUpdateService,
@@ -116,8 +149,37 @@ public class InfluxDb2DeviceFactory implements DeviceFactory {
       scheduledIds.add(sensor.getId());
       scheduler.schedule(() -> executor.executeWithLock((Runnable) sensor::checkState,
               new LockConfiguration(Instant.now(), sensor.getType().getTypeName() + "-" + sensor.getId(), Duration.ofSeconds(60), Duration.ofSeconds(5))),
-          new CronTrigger(sensor.getParameters().get(UPDATE_CRON_EXPRESSION_PARAMETER)));
+          createTrigger(sensor));
+      subscribe(sensor);
+    }
+  }
+
+  private void subscribe(InfluxDb2PowerSensor sensor) {
+    if (pointDispatcher != null) {
+      sensor.getPushMeasurement().ifPresent(measurement -> pointDispatcher.subscribe(measurement, sensor.getPushTags(), sensor::onPushedValue));
+    }
+  }
+
+  private Trigger createTrigger(InfluxDb2PowerSensor sensor) {
+    String cronExpression = sensor.getParameters().get(UPDATE_CRON_EXPRESSION_PARAMETER);
+    if (adaptivePolling.isEnabled()) {
+      // the query only covers its time range, polling less often would miss values. Without a relative range the query is sized for the cron period.
+      Duration queryWindow = sensor.getQueryWindow().orElseGet(() -> cronPeriod(cronExpression));
+      Duration maxInterval = min(adaptivePolling.getMaxInterval(), queryWindow);
+      Duration minInterval = min(adaptivePolling.getMinInterval(), maxInterval);
+      return new AdaptivePollingTrigger(sensor, minInterval, maxInterval, adaptivePolling.getThresholdMargin(), adaptivePolling.getChangeTolerance());
     }
+    return new CronTrigger(cronExpression);
+  }
+
+  private static Duration cronPeriod(String cronExpression) {
+    CronExpression cron = CronExpression.parse(cronExpression);
+    ZonedDateTime next = requireNonNull(cron.next(ZonedDateTime.now()));
+    return Duration.between(next, requireNonNull(cron.next(next)));
+  }
+
+  private static Duration min(Duration a, Duration b) {
+    return a.compareTo(b) <= 0 ? a : b;
   }
 
 }
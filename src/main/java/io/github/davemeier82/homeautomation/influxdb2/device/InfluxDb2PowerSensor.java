@@ -28,14 +28,22 @@ import io.github.davemeier82.homeautomation.core.event.DataWithTimestamp;
 import io.github.davemeier82.homeautomation.core.repositories.DevicePropertyValueRepository;
 import io.github.davemeier82.homeautomation.core.updater.PowerValueUpdateService;
 import io.github.davemeier82.homeautomation.core.updater.RelayStateValueUpdateService;
+import io.github.davemeier82.homeautomation.influxdb2.InfluxDb2QueryProfiler;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
+import java.math.BigDecimal;
+import java.time.Duration;
+import java.time.Instant;
 import java.time.OffsetDateTime;
 import java.time.ZoneOffset;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
 import java.util.List;
 import java.util.Map;
 import java.util.Optional;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
 
 import static io.github.davemeier82.homeautomation.influxdb2.device.InfluxDb2DeviceType.INFLUX_DB2_POWER_SENSOR;
 import static java.util.Objects.requireNonNull;
@@ -47,22 +55,41 @@ public class InfluxDb2PowerSensor implements Device {
   public static final String ON_THRESHOLD_PARAMETER = "onThreshold";
   public static final String OFF_THRESHOLD_PARAMETER = "offThreshold";
   public static final String UPDATE_CRON_EXPRESSION_PARAMETER = "updateCronExpression";
+  public static final String SERVER_SIDE_THRESHOLD_PARAMETER = "serverSideThreshold";
+  public static final String PUSH_MEASUREMENT_PARAMETER = "pushMeasurement";
+  public static final String PUSH_TAGS_PARAMETER = "pushTags";
   public static final String VERSION_PARAMETER = "version";
   public static final String PARAMETER_VERSION = "1.0.0";
+  static final String SELECTOR_COLUMN = "selector";
+  private static final String ON_SELECTOR = "on";
+  private static final String OFF_SELECTOR = "off";
+  private static final String LAST_SELECTOR = "last";
+  private static final Pattern RELATIVE_RANGE_START = Pattern.compile("range\\s*\\(\\s*start\\s*:\\s*-((?:\\d+(?:ms|s|m|h|d|w))+)\\s*[,)]");
+  private static final Pattern DURATION_PART = Pattern.compile("(\\d+)(ms|s|m|h|d|w)");
   private final String id;
   private String displayName;
   private Map<String, String> customIdentifiers;
   private final PowerValueUpdateService powerValueUpdateService;
   private final RelayStateValueUpdateService relayStateValueUpdateService;
   private final DevicePropertyValueRepository devicePropertyValueRepository;
-  private final QueryApi queryApi;
+  private final InfluxDb2QueryProfiler queryProfiler;
   private final String query;
   private final double onThreshold;
   private final double offThreshold;
   private final String cronExpression;
+  private final boolean serverSideThreshold;
+  private final String thresholdQuery;
+  private final String pushMeasurement;
+  private final String pushTags;
 
   private final DevicePropertyId relayDevicePropertyId;
   private final DevicePropertyId powerDevicePropertyId;
+  private volatile Double lastPowerValue;
+  private volatile Double previousPowerValue;
+  private volatile boolean thresholdsCrossed;
+  private volatile Boolean relayState;
+  private OffsetDateTime lastValueTime;
+  private boolean pushedSinceLastCheck;
 
   public InfluxDb2PowerSensor(String id,
                               String displayName,
@@ -75,14 +102,46 @@ public class InfluxDb2PowerSensor implements Device {
                               PowerValueUpdateService powerValueUpdateService,
                               RelayStateValueUpdateService relayStateValueUpdateService,
                               DevicePropertyValueRepository devicePropertyValueRepository
+  ) {
+    this(id, displayName, new InfluxDb2QueryProfiler(queryApi), query, onThreshold, offThreshold, cronExpression, false, null, null, customIdentifiers, powerValueUpdateService,
+        relayStateValueUpdateService, devicePropertyValueRepository);
+  }
+
+  /**
+   * @param serverSideThreshold if {@code true} the threshold crossings are detected by InfluxDB and only the relevant records are downloaded.
+   *                            Requires that {@code query} is a single pipe expression that returns one series.
+   * @param pushMeasurement     measurement of the power values that are written by this application and evaluated without polling. May be {@code null}.
+   * @param pushTags            tags that the pushed power values must have, formatted as {@code key1=value1,key2=value2}. Required if {@code pushMeasurement} is set.
+   */
+  public InfluxDb2PowerSensor(String id,
+                              String displayName,
+                              InfluxDb2QueryProfiler queryProfiler,
+                              String query,
+                              double onThreshold,
+                              double offThreshold,
+                              String cronExpression,
+                              boolean serverSideThreshold,
+                              String pushMeasurement,
+                              String pushTags,
+                              Map<String, String> customIdentifiers,
+                              PowerValueUpdateService powerValueUpdateService,
+                              RelayStateValueUpdateService relayStateValueUpdateService,
+                              DevicePropertyValueRepository devicePropertyValueRepository
   ) {
     this.id = id;
     this.displayName = displayName;
-    this.queryApi = queryApi;
+    this.queryProfiler = queryProfiler;
     this.query = query;
     this.onThreshold = onThreshold;
     this.offThreshold = offThreshold;
     this.cronExpression = cronExpression;
+    this.serverSideThreshold = serverSideThreshold;
+    this.pushMeasurement = pushMeasurement;
+    this.pushTags = pushTags;
+    if (getPushMeasurement().isPresent() && parseTags(pushTags).isEmpty()) {
+      throw new IllegalArgumentException("power sensor " + id + " needs push tags to select the pushed power values of " + pushMeasurement);
+    }
+    thresholdQuery = serverSideThreshold ? createThresholdQuery(query, onThreshold, offThreshold) : null;
     this.customIdentifiers = customIdentifiers;
     this.powerValueUpdateService = powerValueUpdateService;
     this.relayStateValueUpdateService = relayStateValueUpdateService;
@@ -93,47 +152,238 @@ public class InfluxDb2PowerSensor implements Device {
   }
 
   /**
-   * This method gets called by the scheduler to pull new data form the influx database
+   * Appends the detection of the first value above the on threshold, the first value below the off threshold and the last value to the query.
+   * The result contains at most three records which are marked in the {@value #SELECTOR_COLUMN} column.
+   * The rows are sorted by time after merging the tables because {@code group()} does not keep them in order.
+   */
+  static String createThresholdQuery(String query, double onThreshold, double offThreshold) {
+    return "data = " + query.strip() + "\n" +
+        "  |> group()\n" +
+        "  |> sort(columns: [\"_time\"])\n" +
+        "union(tables: [\n" +
+        "  data |> filter(fn: (r) => r._value >= " + toFluxFloat(onThreshold) + ") |> first() |> set(key: \"" + SELECTOR_COLUMN + "\", value: \"" + ON_SELECTOR + "\"),\n" +
+        "  data |> filter(fn: (r) => r._value <= " + toFluxFloat(offThreshold) + ") |> first() |> set(key: \"" + SELECTOR_COLUMN + "\", value: \"" + OFF_SELECTOR + "\"),\n" +
+        "  data |> last() |> set(key: \"" + SELECTOR_COLUMN + "\", value: \"" + LAST_SELECTOR + "\")\n" +
+        "])";
+  }
+
+  private static String toFluxFloat(double value) {
+    String plain = BigDecimal.valueOf(value).toPlainString();
+    return plain.contains(".") ? plain : plain + ".0";
+  }
+
+  /**
+   * This method gets called by the scheduler to pull new data form the influx database.
+   * The query runs without holding the lock of the sensor so that pushed values are not blocked by polling.
    */
   public void checkState() {
+    synchronized (this) {
+      if (pushedSinceLastCheck) {
+        // the pushed values are up-to-date, polling is only needed if nothing was pushed
+        pushedSinceLastCheck = false;
+        return;
+      }
+    }
     log.debug("reading power value of {}", displayName);
-    List<FluxTable> tables = queryApi.query(query);
+    if (serverSideThreshold) {
+      checkStateServerSide();
+    } else {
+      checkStateClientSide();
+    }
+  }
+
+  private void checkStateClientSide() {
+    List<FluxTable> tables = queryProfiler.query(query);
     if (tables.isEmpty()) {
+      noNewValues();
       return;
     }
     List<FluxRecord> records = tables.getFirst().getRecords();
     if (records.isEmpty()) {
+      noNewValues();
       return;
     }
     List<DataWithTimestamp<Double>> values = records.stream()
-                                                    .map(record -> new DataWithTimestamp<>(requireNonNull(record.getTime()).atOffset(ZoneOffset.UTC), (Double) record.getValueByKey("_value")))
+                                                    .map(InfluxDb2PowerSensor::toData)
                                                     .toList();
     if (values.isEmpty()) {
       log.info("no new values");
+      noNewValues();
       return;
     }
 
-    powerValueUpdateService.setValue(values.getLast().getValue(), values.getLast().getDateTime(), powerDevicePropertyId, displayName);
+    updateState(values.getLast(),
+        values.stream().filter(data -> data.getValue() >= onThreshold).findFirst(),
+        values.stream().filter(data -> data.getValue() <= offThreshold).findFirst());
+  }
 
-    isOn().ifPresentOrElse(isOn -> {
-      if (isOn) {
-        Optional<DataWithTimestamp<Double>> firstOff = values.stream().filter(data -> data.getValue() <= offThreshold).findFirst();
-        if (firstOff.isPresent()) {
-          setRelayState(false, firstOff.get().getDateTime());
-          log.debug("{} state change to off", displayName);
-        } else {
-          setRelayState(true, values.getLast().getDateTime());
+  private void checkStateServerSide() {
+    DataWithTimestamp<Double> last = null;
+    DataWithTimestamp<Double> firstOn = null;
+    DataWithTimestamp<Double> firstOff = null;
+    for (FluxTable table : queryProfiler.query(thresholdQuery)) {
+      for (FluxRecord record : table.getRecords()) {
+        switch (String.valueOf(record.getValueByKey(SELECTOR_COLUMN))) {
+          case ON_SELECTOR -> firstOn = toData(record);
+          case OFF_SELECTOR -> firstOff = toData(record);
+          case LAST_SELECTOR -> last = toData(record);
+          default -> log.warn("unexpected record {} in threshold query of {}", record, displayName);
         }
+      }
+    }
+    if (last == null) {
+      log.info("no new values");
+      noNewValues();
+      return;
+    }
+
+    updateState(last, Optional.ofNullable(firstOn), Optional.ofNullable(firstOff));
+  }
+
+  private synchronized void noNewValues() {
+    previousPowerValue = lastPowerValue;
+    thresholdsCrossed = false;
+  }
+
+  /**
+   * Decides the relay state while holding the lock of the sensor. The new values are written after the lock is released
+   * because writing them passes them to other sensors.
+   */
+  private void updateState(DataWithTimestamp<Double> last, Optional<DataWithTimestamp<Double>> firstOn, Optional<DataWithTimestamp<Double>> firstOff) {
+    // reads the relay state from the database on the first call only
+    Optional<Boolean> wasOn = isOn();
+    boolean on;
+    OffsetDateTime relayTime;
+    synchronized (this) {
+      if (lastValueTime != null && last.getDateTime().isBefore(lastValueTime)) {
+        // a poll that started before a newer value was pushed
+        return;
+      }
+      lastValueTime = last.getDateTime();
+      previousPowerValue = lastPowerValue;
+      lastPowerValue = last.getValue();
+      thresholdsCrossed = firstOn.isPresent() && firstOff.isPresent();
+
+      boolean currentlyOn = relayState == null ? wasOn.orElse(false) : relayState;
+      if (relayState == null && wasOn.isEmpty()) {
+        on = firstOn.isPresent();
+        relayTime = last.getDateTime();
+      } else if (currentlyOn && firstOff.isPresent()) {
+        on = false;
+        relayTime = firstOff.get().getDateTime();
+        log.debug("{} state change to off", displayName);
+      } else if (!currentlyOn && firstOn.isPresent()) {
+        on = true;
+        relayTime = firstOn.get().getDateTime();
+        log.debug("{} state change to on", displayName);
       } else {
-        Optional<DataWithTimestamp<Double>> firstOn = values.stream().filter(data -> data.getValue() >= onThreshold).findFirst();
-        if (firstOn.isPresent()) {
-          setRelayState(true, firstOn.get().getDateTime());
-          log.debug("{} state change to on", displayName);
-        } else {
-          setRelayState(false, values.getLast().getDateTime());
-        }
+        on = currentlyOn;
+        relayTime = last.getDateTime();
+      }
+      relayState = on;
+    }
+    powerValueUpdateService.setValue(last.getValue(), last.getDateTime(), powerDevicePropertyId, displayName);
+    setRelayState(on, relayTime);
+  }
+
+  /**
+   * Evaluates a power value that was written by this application.
+   *
+   * @param tags  the tags of the written point
+   * @param value the power value
+   * @param time  the time of the power value
+   */
+  public void onPushedValue(Map<String, String> tags, Object value, Instant time) {
+    if (INFLUX_DB2_POWER_SENSOR.getTypeName().equals(tags.get("deviceType")) && id.equals(tags.get("deviceId"))) {
+      // values written by this sensor itself
+      return;
+    }
+    if (!(value instanceof Number number)) {
+      log.warn("ignoring pushed value {} of {} because it is not a number", value, displayName);
+      return;
+    }
+    synchronized (this) {
+      pushedSinceLastCheck = true;
+    }
+    DataWithTimestamp<Double> data = new DataWithTimestamp<>(time.atOffset(ZoneOffset.UTC), number.doubleValue());
+    updateState(data,
+        data.getValue() >= onThreshold ? Optional.of(data) : Optional.empty(),
+        data.getValue() <= offThreshold ? Optional.of(data) : Optional.empty());
+  }
+
+  public Optional<String> getPushMeasurement() {
+    return Optional.ofNullable(pushMeasurement).filter(measurement -> !measurement.isBlank());
+  }
+
+  public Map<String, String> getPushTags() {
+    return parseTags(pushTags);
+  }
+
+  static Map<String, String> parseTags(String tags) {
+    Map<String, String> parsed = new LinkedHashMap<>();
+    if (tags == null || tags.isBlank()) {
+      return parsed;
+    }
+    for (String tag : tags.split(",")) {
+      int separator = tag.indexOf('=');
+      if (separator <= 0) {
+        throw new IllegalArgumentException("invalid tag " + tag + ", expected key=value");
       }
-    }, () -> setRelayState((values.stream().anyMatch(data -> data.getValue() >= onThreshold)), values.getLast().getDateTime()));
+      parsed.put(tag.substring(0, separator).strip(), tag.substring(separator + 1).strip());
+    }
+    return parsed;
+  }
+
+  private static DataWithTimestamp<Double> toData(FluxRecord record) {
+    return new DataWithTimestamp<>(requireNonNull(record.getTime()).atOffset(ZoneOffset.UTC), (Double) record.getValueByKey("_value"));
+  }
+
+  /**
+   * Tells if the sensor should be polled at a high rate because the power value changed during the last check or is close to one of the thresholds.
+   *
+   * @param thresholdMargin fraction of the distance between the off and on threshold that counts as close
+   * @param changeTolerance fraction of the distance between the off and on threshold by which the power value may change without counting as changed
+   */
+  public boolean isActive(double thresholdMargin, double changeTolerance) {
+    Double value = lastPowerValue;
+    Double previous = previousPowerValue;
+    if (value == null || previous == null || thresholdsCrossed) {
+      return true;
+    }
+    double distance = Math.abs(onThreshold - offThreshold);
+    if (Math.abs(value - previous) > changeTolerance * distance) {
+      return true;
+    }
+    double margin = thresholdMargin * distance;
+    return value >= Math.min(offThreshold, onThreshold) - margin && value <= Math.max(offThreshold, onThreshold) + margin;
+  }
+
+  /**
+   * @return the time range of the query if it starts at a relative time, e.g. 5 minutes for {@code range(start: -5m)}
+   */
+  public Optional<Duration> getQueryWindow() {
+    return queryWindow(query);
+  }
+
+  static Optional<Duration> queryWindow(String query) {
+    Matcher range = RELATIVE_RANGE_START.matcher(query);
+    if (!range.find()) {
+      return Optional.empty();
+    }
+    Duration window = Duration.ZERO;
+    Matcher part = DURATION_PART.matcher(range.group(1));
+    while (part.find()) {
+      long amount = Long.parseLong(part.group(1));
+      window = window.plus(switch (part.group(2)) {
+        case "ms" -> Duration.ofMillis(amount);
+        case "s" -> Duration.ofSeconds(amount);
+        case "m" -> Duration.ofMinutes(amount);
+        case "h" -> Duration.ofHours(amount);
+        case "d" -> Duration.ofDays(amount);
+        default -> Duration.ofDays(7 * amount);
+      });
+    }
+    return Optional.of(window);
   }
 
   private void setRelayState(boolean isOn, OffsetDateTime dateTime) {
@@ -162,8 +412,15 @@ public class InfluxDb2PowerSensor implements Device {
 
   @Override
   public Map<String, String> getParameters() {
-    return Map.of(QUERY_PARAMETER, query, ON_THRESHOLD_PARAMETER, String.valueOf(onThreshold), OFF_THRESHOLD_PARAMETER, String.valueOf(offThreshold), UPDATE_CRON_EXPRESSION_PARAMETER, cronExpression,
-        VERSION_PARAMETER, PARAMETER_VERSION);
+    Map<String, String> parameters = new HashMap<>(Map.of(QUERY_PARAMETER, query, ON_THRESHOLD_PARAMETER, String.valueOf(onThreshold), OFF_THRESHOLD_PARAMETER, String.valueOf(offThreshold),
+        UPDATE_CRON_EXPRESSION_PARAMETER, cronExpression, SERVER_SIDE_THRESHOLD_PARAMETER, String.valueOf(serverSideThreshold), VERSION_PARAMETER, PARAMETER_VERSION));
+    if (pushMeasurement != null) {
+      parameters.put(PUSH_MEASUREMENT_PARAMETER, pushMeasurement);
+    }
+    if (pushTags != null) {
+      parameters.put(PUSH_TAGS_PARAMETER, pushTags);
+    }
+    return Map.copyOf(parameters);
   }
 
   @Override
@@ -177,6 +434,10 @@ public class InfluxDb2PowerSensor implements Device {
   }
 
   private Optional<Boolean> isOn() {
+    Boolean state = relayState;
+    if (state != null) {
+      return Optional.of(state);
+    }
     return devicePropertyValueRepository.findLatestValue(relayDevicePropertyId, DefaultDevicePropertyValueType.RELAY_STATE, Boolean.class).map(DataWithTimestamp::getValue);
   }
 }
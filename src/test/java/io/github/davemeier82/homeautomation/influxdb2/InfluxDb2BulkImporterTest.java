@@ -0,0 +1,147 @@
+/*
+ * Copyright 2021-2026 the original author or authors.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *       https://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package io.github.davemeier82.homeautomation.influxdb2;
+
+import com.influxdb.client.WriteApiBlocking;
+import com.influxdb.client.domain.WritePrecision;
+import com.influxdb.exceptions.InfluxException;
+import io.github.davemeier82.homeautomation.core.repositories.DeviceRepository;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.time.Instant;
+import java.util.List;
+
+import static org.assertj.core.api.Assertions.assertThat;
+import static org.assertj.core.api.Assertions.assertThatThrownBy;
+import static org.mockito.ArgumentMatchers.any;
+import static org.mockito.ArgumentMatchers.anyList;
+import static org.mockito.ArgumentMatchers.eq;
+import static org.mockito.Mockito.doThrow;
+import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.never;
+import static org.mockito.Mockito.times;
+import static org.mockito.Mockito.verify;
+
+class InfluxDb2BulkImporterTest {
+
+  @TempDir
+  Path tempDir;
+
+  private final WriteApiBlocking writeApi = mock(WriteApiBlocking.class);
+  private final InfluxDb2BulkImporter importer = new InfluxDb2BulkImporter(writeApi, new InfluxDb2PointMapper(new InfluxDb2SchemaMapping()), mock(DeviceRepository.class), List.of(), 2, 1);
+
+  @Test
+  void importCsv() throws IOException {
+    Path file = Files.writeString(tempDir.resolve("history.csv"), """
+        time,deviceType,deviceId,devicePropertyId,measurement,unit,displayName,value
+        1000,shelly,1,power,power,W,"Washer, Kitchen",12.5
+        2000,shelly,1,relay,relay,,Relay,true
+        """);
+
+    InfluxDb2BulkImporter.Result result = importer.importCsv(file, null, (committedLine, written) -> {
+    });
+
+    assertThat(result).isEqualTo(new InfluxDb2BulkImporter.Result(2, 2, 0, 0));
+    verify(writeApi).writeRecords(WritePrecision.MS, List.of(
+        "power,deviceId=1,devicePropertyId=power,deviceType=shelly,displayName=Washer\\,\\ Kitchen,unit=W value=12.5 1000",
+        "relay,deviceId=1,devicePropertyId=relay,deviceType=shelly,displayName=Relay value=true 2000"));
+  }
+
+  @Test
+  void importLineProtocolResumesFromCheckpoint() throws IOException {
+    Path file = Files.writeString(tempDir.resolve("history.lp"), "# comment\na v=1 1\na v=2 2\na v=3 3\n");
+    Path checkpoint = Files.writeString(tempDir.resolve("history.lp.checkpoint"), "2");
+
+    InfluxDb2BulkImporter.Result result = importer.importLineProtocol(file, WritePrecision.NS, checkpoint, (committedLine, written) -> {
+    });
+
+    assertThat(result).isEqualTo(new InfluxDb2BulkImporter.Result(4, 2, 0, 0));
+    verify(writeApi).writeRecords(WritePrecision.NS, List.of("a v=2 2", "a v=3 3"));
+    assertThat(checkpoint).hasContent("completed");
+  }
+
+  @Test
+  void completedImportIsNotRepeated() throws IOException {
+    Path file = Files.writeString(tempDir.resolve("history.lp"), "a v=1 1\n");
+    Path checkpoint = Files.writeString(tempDir.resolve("history.lp.checkpoint"), "completed");
+
+    InfluxDb2BulkImporter.Result result = importer.importLineProtocol(file, WritePrecision.NS, checkpoint, (committedLine, written) -> {
+    });
+
+    assertThat(result).isEqualTo(new InfluxDb2BulkImporter.Result(0, 0, 0, 0));
+    verify(writeApi, never()).writeRecords(any(WritePrecision.class), anyList());
+  }
+
+  @Test
+  void rejectedChunkKeepsCheckpoint() throws IOException {
+    Path file = Files.writeString(tempDir.resolve("history.lp"), "a v=1 1\na v=2 2\na v=3 3\n");
+    Path checkpoint = tempDir.resolve("history.lp.checkpoint");
+    doThrow(new InfluxException("field type conflict") {
+      @Override
+      public int status() {
+        return 422;
+      }
+    }).when(writeApi).writeRecords(eq(WritePrecision.NS), eq(List.of("a v=3 3")));
+
+    InfluxDb2BulkImporter.Result result = importer.importLineProtocol(file, WritePrecision.NS, checkpoint, (committedLine, written) -> {
+    });
+
+    assertThat(result).isEqualTo(new InfluxDb2BulkImporter.Result(3, 2, 0, 1));
+    verify(writeApi, times(2)).writeRecords(any(WritePrecision.class), anyList());
+    assertThat(checkpoint).hasContent("2");
+  }
+
+  @Test
+  void failedImportKeepsCheckpoint() throws IOException {
+    Path file = Files.writeString(tempDir.resolve("history.lp"), "a v=1 1\na v=2 2\na v=3 3\n");
+    Path checkpoint = tempDir.resolve("history.lp.checkpoint");
+    doThrow(new InfluxException("unavailable")).when(writeApi).writeRecords(eq(WritePrecision.NS), eq(List.of("a v=3 3")));
+
+    assertThatThrownBy(() -> importer.importLineProtocol(file, WritePrecision.NS, checkpoint, (committedLine, written) -> {
+    })).isInstanceOf(InfluxException.class);
+
+    verify(writeApi, times(4)).writeRecords(any(WritePrecision.class), anyList());
+    assertThat(checkpoint).hasContent("2");
+  }
+
+  @Test
+  void parseCsvLine() {
+    assertThat(InfluxDb2BulkImporter.parseCsvLine("a,\"b,c\",\"d \"\"e\"\"\",")).containsExactly("a", "b,c", "d \"e\"", "");
+  }
+
+  @Test
+  void parseValue() {
+    assertThat(InfluxDb2BulkImporter.parseValue("true", null)).isEqualTo(Boolean.TRUE);
+    assertThat(InfluxDb2BulkImporter.parseValue("12", null)).isEqualTo(12L);
+    assertThat(InfluxDb2BulkImporter.parseValue("-12", null)).isEqualTo(-12L);
+    assertThat(InfluxDb2BulkImporter.parseValue("12.0", null)).isEqualTo(12.0);
+    assertThat(InfluxDb2BulkImporter.parseValue("1e3", null)).isEqualTo(1000.0);
+    assertThat(InfluxDb2BulkImporter.parseValue("12", "double")).isEqualTo(12.0);
+    assertThat(InfluxDb2BulkImporter.parseValue("12", "long")).isEqualTo(12L);
+    assertThat(InfluxDb2BulkImporter.parseValue("FIRE", null)).isEqualTo("FIRE");
+  }
+
+  @Test
+  void parseTime() {
+    assertThat(InfluxDb2BulkImporter.parseTime("1000")).isEqualTo(Instant.ofEpochMilli(1000));
+    assertThat(InfluxDb2BulkImporter.parseTime("2024-01-01T01:00:00+01:00")).isEqualTo(Instant.parse("2024-01-01T00:00:00Z"));
+  }
+}
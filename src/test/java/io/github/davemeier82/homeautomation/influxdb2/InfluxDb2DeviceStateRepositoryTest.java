@@ -17,13 +17,125 @@
 package io.github.davemeier82.homeautomation.influxdb2;
 
 
+import com.influxdb.client.InfluxDBClient;
+import com.influxdb.client.WriteApi;
+import com.influxdb.client.write.Point;
+import com.influxdb.exceptions.InfluxException;
+import com.influxdb.query.FluxRecord;
+import com.influxdb.query.FluxTable;
+import io.github.davemeier82.homeautomation.core.device.DeviceId;
 import io.github.davemeier82.homeautomation.core.device.property.AlarmState;
+import io.github.davemeier82.homeautomation.core.device.property.DevicePropertyId;
+import io.github.davemeier82.homeautomation.core.device.property.DevicePropertyValueType;
+import io.github.davemeier82.homeautomation.core.event.DataWithTimestamp;
+import io.github.davemeier82.homeautomation.core.repositories.DeviceRepository;
+import org.junit.jupiter.api.BeforeEach;
 import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+import org.mockito.ArgumentCaptor;
+import org.springframework.scheduling.TaskScheduler;
 
+import java.nio.file.Path;
+import java.time.Instant;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.function.Consumer;
+
+import static io.github.davemeier82.homeautomation.core.device.property.DefaultDevicePropertyValueType.RELAY_STATE;
+import static io.github.davemeier82.homeautomation.influxdb2.device.InfluxDb2DeviceType.INFLUX_DB2_POWER_SENSOR;
+import static java.time.ZoneOffset.UTC;
 import static org.assertj.core.api.Assertions.assertThat;
+import static org.mockito.ArgumentMatchers.any;
+import static org.mockito.ArgumentMatchers.anyString;
+import static org.mockito.Mockito.atLeastOnce;
+import static org.mockito.Mockito.doAnswer;
+import static org.mockito.Mockito.doThrow;
+import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.never;
+import static org.mockito.Mockito.times;
+import static org.mockito.Mockito.verify;
+import static org.mockito.Mockito.when;
 
 class InfluxDb2DeviceStateRepositoryTest {
 
+  private static final DevicePropertyId RELAY = new DevicePropertyId(new DeviceId("1", INFLUX_DB2_POWER_SENSOR), "relay");
+  private static final InfluxDb2LatestValueSnapshot.Key RELAY_KEY = new InfluxDb2LatestValueSnapshot.Key(RELAY_STATE.getTypeName(),
+      INFLUX_DB2_POWER_SENSOR.getTypeName(), "1", "relay");
+  private static final DevicePropertyId OTHER_RELAY = new DevicePropertyId(new DeviceId("2", INFLUX_DB2_POWER_SENSOR), "relay");
+  private static final DevicePropertyId ENERGY = new DevicePropertyId(new DeviceId("1", INFLUX_DB2_POWER_SENSOR), "energy");
+  private static final DevicePropertyId VOLTAGE = new DevicePropertyId(new DeviceId("1", INFLUX_DB2_POWER_SENSOR), "voltage");
+
+  @TempDir
+  Path tempDir;
+  private final InfluxDBClient influxDBClient = mock(InfluxDBClient.class);
+  private final WriteApi writeApi = mock(WriteApi.class);
+  private final InfluxDb2QueryProfiler queryProfiler = mock(InfluxDb2QueryProfiler.class);
+  private final TaskScheduler scheduler = mock(TaskScheduler.class);
+  private final InfluxDb2PointDispatcher pointDispatcher = new InfluxDb2PointDispatcher();
+  private final DevicePropertyValueType energyType = valueType("energy", "kWh");
+  private final DevicePropertyValueType voltageType = valueType("voltage", "V");
+
+  @BeforeEach
+  void setUp() {
+    when(influxDBClient.makeWriteApi()).thenReturn(writeApi);
+  }
+
+  @Test
+  void restoredValueIsServedWithoutQuery() {
+    InfluxDb2DeviceStateRepository repository = repositoryWithSnapshot(true, Instant.ofEpochSecond(1000));
+
+    assertThat(repository.findLatestValue(RELAY, RELAY_STATE, Boolean.class)).map(DataWithTimestamp::getValue).contains(true);
+    verify(queryProfiler, never()).query(anyString());
+    verify(queryProfiler, never()).query(anyString(), any());
+  }
+
+  @Test
+  void reconciliationUpdatesStaleValues() {
+    InfluxDb2DeviceStateRepository repository = repositoryWithSnapshot(true, Instant.ofEpochSecond(1000));
+    streamRecords(relayRecord(false, Instant.ofEpochSecond(2000)));
+
+    repository.reconcileLatestValues();
+    repository.reconcileLatestValues();
+
+    assertThat(repository.findLatestValue(RELAY, RELAY_STATE, Boolean.class)).map(DataWithTimestamp::getValue).contains(false);
+    ArgumentCaptor<String> queries = ArgumentCaptor.forClass(String.class);
+    verify(queryProfiler, times(2)).query(queries.capture(), any());
+    assertThat(queries.getAllValues().getFirst()).contains("range(start: 0)");
+    assertThat(queries.getAllValues().getLast()).doesNotContain("range(start: 0)");
+    verify(queryProfiler, never()).query(anyString());
+  }
+
+  @Test
+  void failedReconciliationKeepsRestoredValues() {
+    InfluxDb2DeviceStateRepository repository = repositoryWithSnapshot(true, Instant.ofEpochSecond(1000));
+    doThrow(new InfluxException("timeout")).when(queryProfiler).query(anyString(), any());
+
+    repository.reconcileLatestValues();
+    repository.reconcileLatestValues();
+
+    assertThat(repository.findLatestValue(RELAY, RELAY_STATE, Boolean.class)).map(DataWithTimestamp::getValue).contains(true);
+    ArgumentCaptor<String> queries = ArgumentCaptor.forClass(String.class);
+    verify(queryProfiler, times(2)).query(queries.capture(), any());
+    assertThat(queries.getAllValues()).allSatisfy(query -> assertThat(query).contains("range(start: 0)"));
+  }
+
+  @Test
+  void missingValueIsOnlyQueriedUntilTheLatestValuesAreLoaded() {
+    InfluxDb2DeviceStateRepository repository = repositoryWithSnapshot(true, Instant.ofEpochSecond(1000));
+    when(queryProfiler.query(anyString())).thenReturn(List.of());
+
+    assertThat(repository.findLatestValue(OTHER_RELAY, RELAY_STATE, Boolean.class)).isEmpty();
+    verify(queryProfiler, times(1)).query(anyString());
+
+    streamRecords();
+    repository.reconcileLatestValues();
+
+    assertThat(repository.findLatestValue(OTHER_RELAY, RELAY_STATE, Boolean.class)).isEmpty();
+    verify(queryProfiler, times(1)).query(anyString());
+  }
+
   @Test
   void cast() {
     assertThat(InfluxDb2DeviceStateRepository.cast(1L, Long.class)).isEqualTo(Long.valueOf(1L));
@@ -39,4 +151,147 @@ class InfluxDb2DeviceStateRepositoryTest {
     assertThat(InfluxDb2DeviceStateRepository.cast(0, Boolean.class)).isEqualTo(Boolean.FALSE);
 
   }
-}
\ No newline at end of file
+
+  @Test
+  void coalescedValuesAreWrittenAsOnePoint() {
+    InfluxDb2DeviceStateRepository repository = coalescingRepository(null);
+
+    repository.insert(ENERGY, energyType, "Energy", 3.2, Instant.ofEpochSecond(1000).atOffset(UTC));
+    repository.insert(VOLTAGE, voltageType, "Voltage", 230.5, Instant.ofEpochSecond(1000).atOffset(UTC));
+    verify(writeApi, never()).writePoint(any(Point.class));
+    runScheduledFlushes();
+
+    ArgumentCaptor<Point> point = ArgumentCaptor.forClass(Point.class);
+    verify(writeApi).writePoint(point.capture());
+    assertThat(point.getValue().toLineProtocol()).startsWith("device,deviceId=1,deviceType=influxdb2-power ")
+        .contains("energy.energy=3.2").contains("voltage.voltage=230.5").endsWith(" 1000000");
+  }
+
+  @Test
+  void subscribersGetCoalescedValues() {
+    InfluxDb2DeviceStateRepository repository = coalescingRepository(null);
+    List<Object> received = new ArrayList<>();
+    pointDispatcher.subscribe("energy", Map.of("deviceId", "1"), (tags, value, time) -> received.add(value));
+
+    repository.insert(ENERGY, energyType, "Energy", 3.2, Instant.ofEpochSecond(1000).atOffset(UTC));
+
+    assertThat(received).containsExactly(3.2);
+    verify(writeApi, never()).writePoint(any(Point.class));
+    runScheduledFlushes();
+    ArgumentCaptor<Point> point = ArgumentCaptor.forClass(Point.class);
+    verify(writeApi).writePoint(point.capture());
+    assertThat(point.getValue().toLineProtocol()).startsWith("device,").contains("energy.energy=3.2");
+  }
+
+  @Test
+  void coalescedMeasurementIsQueriedInBothLayouts() {
+    InfluxDb2DeviceStateRepository repository = coalescingRepository(null);
+    when(queryProfiler.query(anyString())).thenReturn(List.of());
+
+    repository.findLatestValue(ENERGY, energyType, Double.class);
+
+    ArgumentCaptor<String> query = ArgumentCaptor.forClass(String.class);
+    verify(queryProfiler).query(query.capture());
+    assertThat(query.getValue()).contains(
+        "(r._measurement == \"energy\" and r.devicePropertyId == \"energy\" and r._field == \"value\") or (r._measurement == \"device\" and r._field == \"energy.energy\")",
+        "|> sort(columns: [\"_time\"], desc: true)\n  |> limit(n: 1)");
+  }
+
+  @Test
+  void pendingValueIsMergedIntoTheLatestValue() {
+    InfluxDb2DeviceStateRepository repository = coalescingRepository(null);
+    FluxTable table = new FluxTable();
+    table.getRecords().add(energyRecord(3.0, Instant.ofEpochSecond(1000)));
+    when(queryProfiler.query(anyString())).thenReturn(List.of(table));
+
+    repository.insert(ENERGY, energyType, "Energy", 3.2, Instant.ofEpochSecond(2000).atOffset(UTC));
+    assertThat(repository.findLatestValue(ENERGY, energyType, Double.class)).map(DataWithTimestamp::getValue).contains(3.2);
+
+    runScheduledFlushes();
+    assertThat(repository.findLatestValue(ENERGY, energyType, Double.class)).map(DataWithTimestamp::getValue).contains(3.0);
+  }
+
+  @Test
+  void reconciliationReadsMergedFields() {
+    InfluxDb2DeviceStateRepository repository = coalescingRepository(new InfluxDb2LatestValueSnapshot(tempDir.resolve("snapshot.bin")));
+    streamRecords(mergedEnergyRecord(3.2, Instant.ofEpochSecond(1000)));
+
+    repository.reconcileLatestValues();
+
+    assertThat(repository.findLatestValue(ENERGY, energyType, Double.class)).map(DataWithTimestamp::getValue).contains(3.2);
+    ArgumentCaptor<String> query = ArgumentCaptor.forClass(String.class);
+    verify(queryProfiler).query(query.capture(), any());
+    assertThat(query.getValue()).contains("r._field == \"value\" or r._measurement == \"device\"");
+  }
+
+  @Test
+  void closingWritesPendingValuesOnce() {
+    InfluxDb2DeviceStateRepository repository = coalescingRepository(null);
+
+    repository.insert(ENERGY, energyType, "Energy", 3.2, Instant.ofEpochSecond(1000).atOffset(UTC));
+    repository.destroy();
+    runScheduledFlushes();
+
+    verify(writeApi, times(1)).writePoint(any(Point.class));
+    verify(writeApi).close();
+  }
+
+  private InfluxDb2DeviceStateRepository repositoryWithSnapshot(Object relayState, Instant time) {
+    Path path = tempDir.resolve("snapshot.bin");
+    InfluxDb2LatestValueSnapshot saved = new InfluxDb2LatestValueSnapshot(path);
+    saved.update(RELAY_KEY, relayState, time);
+    saved.save();
+    return new InfluxDb2DeviceStateRepository(influxDBClient, "bucket", mock(DeviceRepository.class), new InfluxDb2LatestValueSnapshot(path),
+        new InfluxDb2SchemaMapping(), new InfluxDb2PointDispatcher(), queryProfiler);
+  }
+
+  private void streamRecords(FluxRecord... records) {
+    doAnswer(invocation -> {
+      Consumer<FluxRecord> onRecord = invocation.getArgument(1);
+      List.of(records).forEach(onRecord);
+      return null;
+    }).when(queryProfiler).query(anyString(), any());
+  }
+
+  private static FluxRecord relayRecord(Object value, Instant time) {
+    FluxRecord record = new FluxRecord(0);
+    record.getValues().putAll(Map.of("_measurement", RELAY_STATE.getTypeName(), "_field", "value", "_value", value, "_time", time));
+    record.getValues().putAll(Map.of("devicePropertyId", "relay", "deviceId", "1", "deviceType", INFLUX_DB2_POWER_SENSOR.getTypeName()));
+    return record;
+  }
+
+  private InfluxDb2DeviceStateRepository coalescingRepository(InfluxDb2LatestValueSnapshot snapshot) {
+    InfluxDb2Properties.CoalescingProperties coalescing = new InfluxDb2Properties.CoalescingProperties();
+    coalescing.setEnabled(true);
+    coalescing.setMeasurements(Set.of("energy", "voltage"));
+    return new InfluxDb2DeviceStateRepository(influxDBClient, "bucket", mock(DeviceRepository.class), snapshot, new InfluxDb2SchemaMapping(), pointDispatcher,
+        queryProfiler, scheduler, coalescing);
+  }
+
+  private void runScheduledFlushes() {
+    ArgumentCaptor<Runnable> flushes = ArgumentCaptor.forClass(Runnable.class);
+    verify(scheduler, atLeastOnce()).schedule(flushes.capture(), any(Instant.class));
+    flushes.getAllValues().forEach(Runnable::run);
+  }
+
+  private static FluxRecord energyRecord(double value, Instant time) {
+    FluxRecord record = new FluxRecord(0);
+    record.getValues().putAll(Map.of("_measurement", "energy", "_field", "value", "_value", value, "_time", time));
+    record.getValues().putAll(Map.of("devicePropertyId", "energy", "deviceId", "1", "deviceType", INFLUX_DB2_POWER_SENSOR.getTypeName()));
+    return record;
+  }
+
+  private static FluxRecord mergedEnergyRecord(double value, Instant time) {
+    FluxRecord record = new FluxRecord(0);
+    record.getValues().putAll(Map.of("_measurement", "device", "_field", "energy.energy", "_value", value, "_time", time));
+    record.getValues().putAll(Map.of("deviceId", "1", "deviceType", INFLUX_DB2_POWER_SENSOR.getTypeName()));
+    return record;
+  }
+
+  private static DevicePropertyValueType valueType(String typeName, String unit) {
+    DevicePropertyValueType valueType = mock(DevicePropertyValueType.class);
+    when(valueType.getTypeName()).thenReturn(typeName);
+    when(valueType.getUnit()).thenReturn(unit);
+    return valueType;
+  }
+}
@@ -0,0 +1,100 @@
+/*
+ * Copyright 2021-2026 the original author or authors.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *       https://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package io.github.davemeier82.homeautomation.influxdb2;
+
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+
+import java.nio.file.Path;
+import java.time.Instant;
+
+import static org.assertj.core.api.Assertions.assertThat;
+
+class InfluxDb2LatestValueSnapshotTest {
+
+  private static final InfluxDb2LatestValueSnapshot.Key POWER = new InfluxDb2LatestValueSnapshot.Key("power", "shelly", "1", "power");
+  private static final InfluxDb2LatestValueSnapshot.Key RELAY = new InfluxDb2LatestValueSnapshot.Key("relay", "shelly", "1", "relay");
+  private static final InfluxDb2LatestValueSnapshot.Key STATE = new InfluxDb2LatestValueSnapshot.Key("alarm", "smoke", "2", "alarm");
+
+  @TempDir
+  Path tempDir;
+
+  @Test
+  void saveAndLoad() {
+    Path path = tempDir.resolve("snapshot.bin");
+    InfluxDb2LatestValueSnapshot snapshot = new InfluxDb2LatestValueSnapshot(path);
+    snapshot.update(POWER, 12.5, Instant.ofEpochMilli(1000));
+    snapshot.update(RELAY, true, Instant.ofEpochMilli(2000));
+    snapshot.update(STATE, "FIRE", Instant.ofEpochMilli(3000));
+    snapshot.save();
+
+    InfluxDb2LatestValueSnapshot restored = new InfluxDb2LatestValueSnapshot(path);
+    restored.load();
+
+    assertThat(restored.size()).isEqualTo(3);
+    assertThat(restored.get(POWER)).contains(new InfluxDb2LatestValueSnapshot.Entry(12.5, Instant.ofEpochMilli(1000), true));
+    assertThat(restored.get(RELAY)).contains(new InfluxDb2LatestValueSnapshot.Entry(true, Instant.ofEpochMilli(2000), true));
+    assertThat(restored.get(STATE)).contains(new InfluxDb2LatestValueSnapshot.Entry("FIRE", Instant.ofEpochMilli(3000), true));
+  }
+
+  @Test
+  void updateKeepsNewerValue() {
+    InfluxDb2LatestValueSnapshot snapshot = new InfluxDb2LatestValueSnapshot(tempDir.resolve("snapshot.bin"));
+    snapshot.update(POWER, 2.0, Instant.ofEpochMilli(2000));
+    snapshot.update(POWER, 1.0, Instant.ofEpochMilli(1000));
+
+    assertThat(snapshot.get(POWER).map(InfluxDb2LatestValueSnapshot.Entry::value)).contains(2.0);
+  }
+
+  @Test
+  void markReconciled() {
+    Path path = tempDir.resolve("snapshot.bin");
+    InfluxDb2LatestValueSnapshot snapshot = new InfluxDb2LatestValueSnapshot(path);
+    snapshot.update(POWER, 2.0, Instant.ofEpochMilli(2000));
+    snapshot.save();
+    InfluxDb2LatestValueSnapshot restored = new InfluxDb2LatestValueSnapshot(path);
+    restored.load();
+
+    restored.markReconciled(POWER);
+
+    assertThat(restored.get(POWER)).contains(new InfluxDb2LatestValueSnapshot.Entry(2.0, Instant.ofEpochMilli(2000), false));
+  }
+
+  @Test
+  void markAllReconciled() {
+    Path path = tempDir.resolve("snapshot.bin");
+    InfluxDb2LatestValueSnapshot snapshot = new InfluxDb2LatestValueSnapshot(path);
+    snapshot.update(POWER, 2.0, Instant.ofEpochMilli(2000));
+    snapshot.update(RELAY, true, Instant.ofEpochMilli(1000));
+    snapshot.save();
+    InfluxDb2LatestValueSnapshot restored = new InfluxDb2LatestValueSnapshot(path);
+    restored.load();
+
+    restored.markAllReconciled();
+
+    assertThat(restored.get(POWER)).hasValueSatisfying(entry -> assertThat(entry.restored()).isFalse());
+    assertThat(restored.get(RELAY)).hasValueSatisfying(entry -> assertThat(entry.restored()).isFalse());
+  }
+
+  @Test
+  void loadMissingFile() {
+    InfluxDb2LatestValueSnapshot snapshot = new InfluxDb2LatestValueSnapshot(tempDir.resolve("missing.bin"));
+    snapshot.load();
+
+    assertThat(snapshot.size()).isZero();
+  }
+}
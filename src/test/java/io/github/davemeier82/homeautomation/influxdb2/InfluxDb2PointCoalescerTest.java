@@ -0,0 +1,75 @@
+/*
+ * Copyright 2021-2026 the original author or authors.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *       https://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package io.github.davemeier82.homeautomation.influxdb2;
+
+import org.junit.jupiter.api.Test;
+import org.mockito.ArgumentCaptor;
+import org.springframework.scheduling.TaskScheduler;
+
+import java.time.Duration;
+import java.time.Instant;
+import java.util.ArrayList;
+import java.util.List;
+
+import static org.assertj.core.api.Assertions.assertThat;
+import static org.mockito.ArgumentMatchers.any;
+import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.times;
+import static org.mockito.Mockito.verify;
+
+class InfluxDb2PointCoalescerTest {
+
+  @Test
+  void groupValuesOfTheSameDeviceAndTime() {
+    TaskScheduler scheduler = mock(TaskScheduler.class);
+    List<InfluxDb2PointCoalescer.Group> written = new ArrayList<>();
+    InfluxDb2PointCoalescer coalescer = new InfluxDb2PointCoalescer(scheduler, Duration.ofMillis(500), written::add);
+    Instant time = Instant.ofEpochSecond(1000);
+
+    coalescer.add("shelly", "1", null, time, new InfluxDb2PointCoalescer.Value("power", "power", 12.5));
+    coalescer.add("shelly", "1", null, time, new InfluxDb2PointCoalescer.Value("energy", "energy", 3.2));
+    coalescer.add("shelly", "2", null, time, new InfluxDb2PointCoalescer.Value("power", "power", 7.0));
+
+    assertThat(coalescer.findPending("shelly", "1", "energy", "energy")).hasValue(new InfluxDb2PointCoalescer.Pending(3.2, time));
+    coalescer.flushAll();
+
+    verify(scheduler, times(2)).schedule(any(Runnable.class), any(Instant.class));
+    assertThat(written).hasSize(2);
+    assertThat(written).filteredOn(group -> group.key().deviceId().equals("1")).singleElement()
+        .satisfies(group -> assertThat(group.values()).extracting(InfluxDb2PointCoalescer.Value::value).containsExactly(12.5, 3.2));
+    assertThat(coalescer.findPending("shelly", "1", "energy", "energy")).isEmpty();
+  }
+
+  @Test
+  void closeWritesPendingGroupsAndLaterValuesImmediately() {
+    TaskScheduler scheduler = mock(TaskScheduler.class);
+    List<InfluxDb2PointCoalescer.Group> written = new ArrayList<>();
+    InfluxDb2PointCoalescer coalescer = new InfluxDb2PointCoalescer(scheduler, Duration.ofMillis(500), written::add);
+    Instant time = Instant.ofEpochSecond(1000);
+    coalescer.add("shelly", "1", null, time, new InfluxDb2PointCoalescer.Value("power", "power", 12.5));
+    ArgumentCaptor<Runnable> scheduledFlush = ArgumentCaptor.forClass(Runnable.class);
+    verify(scheduler).schedule(scheduledFlush.capture(), any(Instant.class));
+
+    coalescer.close();
+    coalescer.add("shelly", "1", null, time, new InfluxDb2PointCoalescer.Value("energy", "energy", 3.2));
+    scheduledFlush.getValue().run();
+
+    verify(scheduler, times(1)).schedule(any(Runnable.class), any(Instant.class));
+    assertThat(written).extracting(group -> group.values().stream().map(InfluxDb2PointCoalescer.Value::value).toList())
+        .containsExactly(List.of(12.5), List.of(3.2));
+  }
+}
@@ -0,0 +1,64 @@
+/*
+ * Copyright 2021-2026 the original author or authors.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *       https://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package io.github.davemeier82.homeautomation.influxdb2;
+
+import org.junit.jupiter.api.Test;
+
+import java.time.Instant;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+
+import static org.assertj.core.api.Assertions.assertThat;
+
+class InfluxDb2PointDispatcherTest {
+
+  @Test
+  void dispatchToMatchingSubscriptions() {
+    InfluxDb2PointDispatcher dispatcher = new InfluxDb2PointDispatcher();
+    List<Object> received = new ArrayList<>();
+    InfluxDb2PointDispatcher.Subscription subscription = dispatcher.subscribe("power", Map.of("deviceId", "1"), (tags, value, time) -> received.add(value));
+
+    dispatcher.dispatch("power", Map.of("deviceId", "1", "deviceType", "shelly"), 12.5, Instant.EPOCH);
+    dispatcher.dispatch("power", Map.of("deviceId", "2", "deviceType", "shelly"), 13.5, Instant.EPOCH);
+    dispatcher.dispatch("energy", Map.of("deviceId", "1", "deviceType", "shelly"), 14.5, Instant.EPOCH);
+    dispatcher.unsubscribe(subscription);
+    dispatcher.dispatch("power", Map.of("deviceId", "1", "deviceType", "shelly"), 15.5, Instant.EPOCH);
+
+    assertThat(received).containsExactly(12.5);
+    assertThat(dispatcher.hasSubscriptions("power")).isFalse();
+  }
+
+  @Test
+  void subscribersThatWriteEachOthersPointsDoNotRecurse() {
+    InfluxDb2PointDispatcher dispatcher = new InfluxDb2PointDispatcher();
+    List<String> received = new ArrayList<>();
+    dispatcher.subscribe("power", Map.of("deviceId", "a"), (tags, value, time) -> {
+      received.add("b received " + value);
+      dispatcher.dispatch("power", Map.of("deviceId", "b"), value, time);
+    });
+    dispatcher.subscribe("power", Map.of("deviceId", "b"), (tags, value, time) -> {
+      received.add("a received " + value);
+      dispatcher.dispatch("power", Map.of("deviceId", "a"), value, time);
+    });
+
+    dispatcher.dispatch("power", Map.of("deviceId", "a"), 12.5, Instant.EPOCH);
+    dispatcher.dispatch("power", Map.of("deviceId", "a"), 13.5, Instant.EPOCH);
+
+    assertThat(received).containsExactly("b received 12.5", "a received 12.5", "b received 13.5", "a received 13.5");
+  }
+}
@@ -0,0 +1,108 @@
+/*
+ * Copyright 2021-2026 the original author or authors.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *       https://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package io.github.davemeier82.homeautomation.influxdb2;
+
+import com.influxdb.client.QueryApi;
+import com.influxdb.exceptions.InfluxException;
+import com.influxdb.query.FluxRecord;
+import com.influxdb.query.FluxTable;
+import org.junit.jupiter.api.Test;
+
+import java.time.Duration;
+import java.util.List;
+import java.util.Map;
+
+import static org.assertj.core.api.Assertions.assertThat;
+import static org.assertj.core.api.Assertions.assertThatThrownBy;
+import static org.mockito.ArgumentMatchers.anyString;
+import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.when;
+
+class InfluxDb2QueryProfilerTest {
+
+  @Test
+  void withProfiler() {
+    assertThat(InfluxDb2QueryProfiler.withProfiler("from(bucket: \"b\")\n  |> last()")).isEqualTo("""
+        import "profiler"
+        option profiler.enabledProfilers = ["query", "operator"]
+        from(bucket: "b")
+          |> last()""");
+    assertThat(InfluxDb2QueryProfiler.withProfiler("import \"math\"\n\nfrom(bucket: \"b\")")).isEqualTo("""
+        import "math"
+
+        import "profiler"
+        option profiler.enabledProfilers = ["query", "operator"]
+        from(bucket: "b")""");
+    assertThat(InfluxDb2QueryProfiler.withProfiler("// power of the washer\nimport \"math\"\nfrom(bucket: \"b\")")).isEqualTo("""
+        // power of the washer
+        import "math"
+        import "profiler"
+        option profiler.enabledProfilers = ["query", "operator"]
+        from(bucket: "b")""");
+  }
+
+  @Test
+  void keepsBoundedBufferOfSlowQueries() {
+    QueryApi queryApi = mock(QueryApi.class);
+    when(queryApi.query("q1")).thenReturn(List.of(new FluxTable()));
+    when(queryApi.query("q2")).thenReturn(List.of());
+    when(queryApi.query("q3")).thenReturn(List.of());
+    InfluxDb2QueryProfiler profiler = new InfluxDb2QueryProfiler(queryApi, true, 0, Duration.ZERO, 2);
+
+    assertThat(profiler.query("q1")).hasSize(1);
+    profiler.query("q2");
+    profiler.query("q3");
+
+    assertThat(profiler.getSlowQueries()).extracting(InfluxDb2QueryProfiler.SlowQuery::query).containsExactly("q2", "q3");
+  }
+
+  @Test
+  void keepsSampledQueriesThatAreNotSlow() {
+    FluxRecord queryProfile = new FluxRecord(0);
+    queryProfile.getValues().putAll(Map.of("_measurement", "profiler/query", "influxdb/scanned-values", 42L, "influxdb/scanned-bytes", 1024L));
+    FluxTable profileTable = new FluxTable();
+    profileTable.getRecords().add(queryProfile);
+    FluxTable dataTable = new FluxTable();
+    dataTable.getRecords().add(new FluxRecord(0));
+    QueryApi queryApi = mock(QueryApi.class);
+    when(queryApi.query(anyString())).thenReturn(List.of(profileTable, dataTable));
+    InfluxDb2QueryProfiler profiler = new InfluxDb2QueryProfiler(queryApi, true, 1, Duration.ofHours(1), 2);
+
+    assertThat(profiler.query("from(bucket: \"b\")")).containsExactly(dataTable);
+
+    assertThat(profiler.getSlowQueries()).isEmpty();
+    assertThat(profiler.getSampledQueries()).singleElement().satisfies(sampledQuery -> {
+      assertThat(sampledQuery.rowsReturned()).isEqualTo(1);
+      assertThat(sampledQuery.scannedValues()).isEqualTo(42L);
+      assertThat(sampledQuery.scannedBytes()).isEqualTo(1024L);
+    });
+  }
+
+  @Test
+  void recordsFailedSlowQueries() {
+    QueryApi queryApi = mock(QueryApi.class);
+    when(queryApi.query("q1")).thenThrow(new InfluxException("timeout"));
+    InfluxDb2QueryProfiler profiler = new InfluxDb2QueryProfiler(queryApi, true, 0, Duration.ZERO, 2);
+
+    assertThatThrownBy(() -> profiler.query("q1")).isInstanceOf(InfluxException.class);
+
+    assertThat(profiler.getSlowQueries()).singleElement().satisfies(slowQuery -> {
+      assertThat(slowQuery.query()).isEqualTo("q1");
+      assertThat(slowQuery.failed()).isTrue();
+    });
+  }
+}
@@ -0,0 +1,113 @@
+/*
+ * Copyright 2021-2026 the original author or authors.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *       https://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package io.github.davemeier82.homeautomation.influxdb2;
+
+import com.influxdb.query.FluxRecord;
+import org.junit.jupiter.api.Test;
+
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.function.Consumer;
+
+import static io.github.davemeier82.homeautomation.influxdb2.InfluxDb2SchemaMapping.AttributeMapping.DROP;
+import static io.github.davemeier82.homeautomation.influxdb2.InfluxDb2SchemaMapping.AttributeMapping.FIELD;
+import static io.github.davemeier82.homeautomation.influxdb2.InfluxDb2SchemaMapping.AttributeMapping.TAG;
+import static io.github.davemeier82.homeautomation.influxdb2.InfluxDb2SchemaMapping.CardinalityAction.DEMOTE;
+import static io.github.davemeier82.homeautomation.influxdb2.InfluxDb2SchemaMapping.CardinalityAction.WARN;
+import static org.assertj.core.api.Assertions.assertThat;
+import static org.mockito.ArgumentMatchers.any;
+import static org.mockito.ArgumentMatchers.anyString;
+import static org.mockito.Mockito.doAnswer;
+import static org.mockito.Mockito.mock;
+
+class InfluxDb2SchemaMappingTest {
+
+  private static final Map<String, String> CORE_TAGS = Map.of("devicePropertyId", "power", "deviceId", "1", "deviceType", "shelly");
+
+  @Test
+  void defaultMapsEverythingToTags() {
+    InfluxDb2SchemaMapping mapping = new InfluxDb2SchemaMapping();
+
+    InfluxDb2SchemaMapping.MappedAttributes mapped = mapping.map("power", CORE_TAGS, attributes("Kitchen", "kitchen"));
+
+    assertThat(mapped.tags()).containsEntry("deviceId", "1").containsEntry("displayName", "Kitchen").containsEntry("ci-room", "kitchen").doesNotContainKey("unit");
+    assertThat(mapped.fields()).isEmpty();
+  }
+
+  @Test
+  void mapsAttributesToFieldsOrDropsThem() {
+    InfluxDb2SchemaMapping mapping = new InfluxDb2SchemaMapping(Map.of("displayName", FIELD, "ci-room", TAG), DROP, 0, WARN);
+    Map<String, String> attributes = attributes("Kitchen", "kitchen");
+    attributes.put("ci-serial", "123");
+
+    InfluxDb2SchemaMapping.MappedAttributes mapped = mapping.map("power", CORE_TAGS, attributes);
+
+    assertThat(mapped.tags()).containsEntry("ci-room", "kitchen").doesNotContainKeys("displayName", "ci-serial");
+    assertThat(mapped.fields()).containsOnly(Map.entry("displayName", "Kitchen"));
+  }
+
+  @Test
+  void demotesTagsOfNewSeriesOnceLimitIsReached() {
+    InfluxDb2SchemaMapping mapping = new InfluxDb2SchemaMapping(Map.of(), TAG, 2, DEMOTE);
+
+    mapping.map("power", CORE_TAGS, attributes("a", "kitchen"));
+    mapping.map("power", CORE_TAGS, attributes("b", "kitchen"));
+    InfluxDb2SchemaMapping.MappedAttributes known = mapping.map("power", CORE_TAGS, attributes("a", "kitchen"));
+    InfluxDb2SchemaMapping.MappedAttributes demoted = mapping.map("power", CORE_TAGS, attributes("c", "kitchen"));
+
+    assertThat(known.tags()).containsEntry("displayName", "a");
+    assertThat(demoted.tags()).containsOnlyKeys("devicePropertyId", "deviceId", "deviceType");
+    assertThat(demoted.fields()).containsEntry("displayName", "c").containsEntry("ci-room", "kitchen");
+    assertThat(mapping.getSeriesCardinality()).containsEntry("power", 2);
+  }
+
+  @Test
+  void countsSeriesThatExistBeforeStartup() {
+    InfluxDb2QueryProfiler queryProfiler = mock(InfluxDb2QueryProfiler.class);
+    doAnswer(invocation -> {
+      Consumer<FluxRecord> onRecord = invocation.getArgument(1);
+      onRecord.accept(seriesRecord("a"));
+      onRecord.accept(seriesRecord("b"));
+      onRecord.accept(seriesRecord("c"));
+      return null;
+    }).when(queryProfiler).query(anyString(), any());
+    InfluxDb2SchemaMapping mapping = new InfluxDb2SchemaMapping(Map.of(), TAG, 1, DEMOTE);
+
+    mapping.loadSeries(queryProfiler, "bucket");
+    InfluxDb2SchemaMapping.MappedAttributes known = mapping.map("power", CORE_TAGS, attributes("a", "kitchen"));
+    InfluxDb2SchemaMapping.MappedAttributes demoted = mapping.map("power", CORE_TAGS, attributes("b", "kitchen"));
+
+    assertThat(known.tags()).containsEntry("displayName", "a");
+    assertThat(demoted.fields()).containsEntry("displayName", "b");
+    assertThat(mapping.getSeriesCardinality()).containsEntry("power", 3);
+  }
+
+  private static FluxRecord seriesRecord(String displayName) {
+    FluxRecord record = new FluxRecord(0);
+    record.getValues().putAll(Map.of("_measurement", "power", "_field", "value", "_value", 1.0, "result", "_result", "table", 0));
+    record.getValues().putAll(Map.of("devicePropertyId", "power", "deviceId", "1", "deviceType", "shelly", "displayName", displayName, "ci-room", "kitchen"));
+    return record;
+  }
+
+  private static Map<String, String> attributes(String displayName, String room) {
+    Map<String, String> attributes = new LinkedHashMap<>();
+    attributes.put("displayName", displayName);
+    attributes.put("unit", null);
+    attributes.put("ci-room", room);
+    return attributes;
+  }
+}
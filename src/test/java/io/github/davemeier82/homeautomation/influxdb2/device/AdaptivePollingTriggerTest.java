@@ -0,0 +1,48 @@
+/*
+ * Copyright 2021-2026 the original author or authors.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *       https://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package io.github.davemeier82.homeautomation.influxdb2.device;
+
+import org.junit.jupiter.api.Test;
+import org.springframework.scheduling.support.SimpleTriggerContext;
+
+import java.time.Duration;
+import java.time.Instant;
+
+import static org.assertj.core.api.Assertions.assertThat;
+import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.when;
+
+class AdaptivePollingTriggerTest {
+
+  private static final Instant NOW = Instant.parse("2024-01-01T00:00:00Z");
+
+  @Test
+  void backsOffWhileIdleAndResetsWhenActive() {
+    InfluxDb2PowerSensor sensor = mock(InfluxDb2PowerSensor.class);
+    AdaptivePollingTrigger trigger = new AdaptivePollingTrigger(sensor, Duration.ofSeconds(10), Duration.ofSeconds(60), 0.2, 0.05);
+    SimpleTriggerContext context = new SimpleTriggerContext(NOW, NOW, NOW);
+
+    when(sensor.isActive(0.2, 0.05)).thenReturn(false);
+    assertThat(trigger.nextExecution(context)).isEqualTo(NOW.plusSeconds(20));
+    assertThat(trigger.nextExecution(context)).isEqualTo(NOW.plusSeconds(40));
+    assertThat(trigger.nextExecution(context)).isEqualTo(NOW.plusSeconds(60));
+    assertThat(trigger.nextExecution(context)).isEqualTo(NOW.plusSeconds(60));
+
+    when(sensor.isActive(0.2, 0.05)).thenReturn(true);
+    assertThat(trigger.nextExecution(context)).isEqualTo(NOW.plusSeconds(10));
+  }
+}
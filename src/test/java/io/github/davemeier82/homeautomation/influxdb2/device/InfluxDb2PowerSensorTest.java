@@ -0,0 +1,161 @@
+/*
+ * Copyright 2021-2026 the original author or authors.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *       https://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package io.github.davemeier82.homeautomation.influxdb2.device;
+
+import com.influxdb.query.FluxRecord;
+import com.influxdb.query.FluxTable;
+import io.github.davemeier82.homeautomation.core.event.DataWithTimestamp;
+import io.github.davemeier82.homeautomation.core.repositories.DevicePropertyValueRepository;
+import io.github.davemeier82.homeautomation.core.updater.PowerValueUpdateService;
+import io.github.davemeier82.homeautomation.core.updater.RelayStateValueUpdateService;
+import io.github.davemeier82.homeautomation.influxdb2.InfluxDb2QueryProfiler;
+import org.junit.jupiter.api.Test;
+import org.mockito.ArgumentCaptor;
+
+import java.time.Duration;
+import java.time.Instant;
+import java.time.OffsetDateTime;
+import java.util.List;
+import java.util.Map;
+import java.util.Optional;
+
+import static org.assertj.core.api.Assertions.assertThat;
+import static org.assertj.core.api.Assertions.assertThatThrownBy;
+import static java.time.ZoneOffset.UTC;
+import static org.mockito.ArgumentMatchers.any;
+import static org.mockito.ArgumentMatchers.eq;
+import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.times;
+import static org.mockito.Mockito.verify;
+import static org.mockito.Mockito.when;
+
+class InfluxDb2PowerSensorTest {
+
+  private static final String QUERY = "from(bucket: \"power\")\n  |> range(start: -5m)\n  |> filter(fn: (r) => r._measurement == \"washer\")\n";
+
+  @Test
+  void createThresholdQuery() {
+    String query = "from(bucket: \"power\")\n  |> range(start: -5m)\n  |> filter(fn: (r) => r._measurement == \"washer\")\n";
+
+    assertThat(InfluxDb2PowerSensor.createThresholdQuery(query, 10, 0.5)).isEqualTo("""
+        data = from(bucket: "power")
+          |> range(start: -5m)
+          |> filter(fn: (r) => r._measurement == "washer")
+          |> group()
+          |> sort(columns: ["_time"])
+        union(tables: [
+          data |> filter(fn: (r) => r._value >= 10.0) |> first() |> set(key: "selector", value: "on"),
+          data |> filter(fn: (r) => r._value <= 0.5) |> first() |> set(key: "selector", value: "off"),
+          data |> last() |> set(key: "selector", value: "last")
+        ])""");
+  }
+
+  @Test
+  void serverSideThresholdTurnsOnLikeClientSide() {
+    assertThat(checkState(true, false)).isEqualTo(checkState(false, false)).isEqualTo(new RelayDecision(true, time(2), 3.0));
+  }
+
+  @Test
+  void serverSideThresholdTurnsOffLikeClientSide() {
+    assertThat(checkState(true, true)).isEqualTo(checkState(false, true)).isEqualTo(new RelayDecision(false, time(4), 3.0));
+  }
+
+  @Test
+  void queryWindow() {
+    assertThat(InfluxDb2PowerSensor.queryWindow("from(bucket: \"power\")\n  |> range(start: -1h30m)\n")).contains(Duration.ofMinutes(90));
+    assertThat(InfluxDb2PowerSensor.queryWindow("from(bucket: \"power\") |> range(start: -5m, stop: now())")).contains(Duration.ofMinutes(5));
+    assertThat(InfluxDb2PowerSensor.queryWindow("from(bucket: \"power\") |> range(start: 2024-01-01T00:00:00Z)")).isEmpty();
+  }
+
+  @Test
+  void pushedValuesReadRelayStateOnce() {
+    DevicePropertyValueRepository repository = mock(DevicePropertyValueRepository.class);
+    RelayStateValueUpdateService relayStateValueUpdateService = mock(RelayStateValueUpdateService.class);
+    InfluxDb2PowerSensor sensor = new InfluxDb2PowerSensor("washer", "Washer", mock(InfluxDb2QueryProfiler.class), "", 10, 0.5, "0 * * * * *", false, "power",
+        "deviceId=plug", Map.of(), mock(PowerValueUpdateService.class), relayStateValueUpdateService, repository);
+    Map<String, String> tags = Map.of("deviceType", "shelly", "deviceId", "plug");
+
+    sensor.onPushedValue(tags, 20.0, Instant.ofEpochSecond(1));
+    sensor.onPushedValue(tags, 0.1, Instant.ofEpochSecond(2));
+
+    verify(repository, times(1)).findLatestValue(any(), any(), any());
+    verify(relayStateValueUpdateService).setValue(eq(true), any(), any(), eq("Washer"));
+    verify(relayStateValueUpdateService).setValue(eq(false), any(), any(), eq("Washer"));
+  }
+
+  @Test
+  void pushMeasurementRequiresPushTags() {
+    assertThatThrownBy(() -> new InfluxDb2PowerSensor("washer", "Washer", mock(InfluxDb2QueryProfiler.class), "", 10, 0.5, "0 * * * * *", false, "power", " ", Map.of(),
+        mock(PowerValueUpdateService.class), mock(RelayStateValueUpdateService.class), mock(DevicePropertyValueRepository.class)))
+        .isInstanceOf(IllegalArgumentException.class);
+  }
+
+  @Test
+  void parseTags() {
+    assertThat(InfluxDb2PowerSensor.parseTags("deviceId=washer, devicePropertyId = power")).containsExactly(Map.entry("deviceId", "washer"), Map.entry("devicePropertyId", "power"));
+    assertThat(InfluxDb2PowerSensor.parseTags(null)).isEmpty();
+  }
+
+  /**
+   * Runs one check on the power values 5, 12, 8, 0.2 and 3 with an on threshold of 10 and an off threshold of 0.5.
+   */
+  private static RelayDecision checkState(boolean serverSideThreshold, boolean wasOn) {
+    InfluxDb2QueryProfiler queryProfiler = mock(InfluxDb2QueryProfiler.class);
+    when(queryProfiler.query(QUERY)).thenReturn(List.of(table(record(1, 5.0, null), record(2, 12.0, null), record(3, 8.0, null), record(4, 0.2, null),
+        record(5, 3.0, null))));
+    when(queryProfiler.query(InfluxDb2PowerSensor.createThresholdQuery(QUERY, 10, 0.5))).thenReturn(List.of(table(record(2, 12.0, "on"), record(4, 0.2, "off"),
+        record(5, 3.0, "last"))));
+    DevicePropertyValueRepository repository = mock(DevicePropertyValueRepository.class);
+    when(repository.findLatestValue(any(), any(), eq(Boolean.class))).thenReturn(Optional.of(new DataWithTimestamp<>(time(0), wasOn)));
+    PowerValueUpdateService powerValueUpdateService = mock(PowerValueUpdateService.class);
+    RelayStateValueUpdateService relayStateValueUpdateService = mock(RelayStateValueUpdateService.class);
+    InfluxDb2PowerSensor sensor = new InfluxDb2PowerSensor("washer", "Washer", queryProfiler, QUERY, 10, 0.5, "0 * * * * *", serverSideThreshold, null, null, Map.of(),
+        powerValueUpdateService, relayStateValueUpdateService, repository);
+
+    sensor.checkState();
+
+    ArgumentCaptor<Boolean> on = ArgumentCaptor.forClass(Boolean.class);
+    ArgumentCaptor<OffsetDateTime> relayTime = ArgumentCaptor.forClass(OffsetDateTime.class);
+    ArgumentCaptor<Double> power = ArgumentCaptor.forClass(Double.class);
+    verify(relayStateValueUpdateService).setValue(on.capture(), relayTime.capture(), any(), eq("Washer"));
+    verify(powerValueUpdateService).setValue(power.capture(), eq(time(5)), any(), eq("Washer"));
+    return new RelayDecision(on.getValue(), relayTime.getValue(), power.getValue());
+  }
+
+  private static FluxTable table(FluxRecord... records) {
+    FluxTable table = new FluxTable();
+    table.getRecords().addAll(List.of(records));
+    return table;
+  }
+
+  private static FluxRecord record(long second, double value, String selector) {
+    FluxRecord record = new FluxRecord(0);
+    record.getValues().put("_time", Instant.ofEpochSecond(second));
+    record.getValues().put("_value", value);
+    if (selector != null) {
+      record.getValues().put(InfluxDb2PowerSensor.SELECTOR_COLUMN, selector);
+    }
+    return record;
+  }
+
+  private static OffsetDateTime time(long second) {
+    return Instant.ofEpochSecond(second).atOffset(UTC);
+  }
+
+  private record RelayDecision(boolean on, OffsetDateTime relayTime, double power) {
+  }
+}